@@ -0,0 +1,120 @@
+package bench;
+
+import java.util.Random;
+
+import ascii.ConvertToASCII;
+import client.FrameCompressor;
+
+/**
+ * Measures the CPU cost and the bandwidth saving of the frame
+ * compression for typical mail bodies and for random text. Break-even
+ * link speed is the bandwidth below which compression makes the
+ * transfer of the frame faster than sending it raw.
+ *
+ * @author Martin Holecek
+ *
+ */
+public class FramingBenchmark {
+	private static final int[] SIZES = { 512, 1024, 4096, 16384, 65536, 262144 };
+	private static final long MEASURE_NANOS = 300000000L;
+
+	/**
+	 * Start point of the benchmark
+	 *
+	 * @param args the command line arguments are not used
+	 */
+	public static void main(String[] args) {
+		System.out.println(String.format("%-8s %8s %10s %8s %12s %12s %14s",
+				"body", "raw B", "frame B", "ratio", "deflate us", "inflate us", "break-even"));
+		for (int size : SIZES) {
+			run("mail", mailBody(size));
+		}
+		for (int size : SIZES) {
+			run("random", randomBody(size));
+		}
+	}
+
+	/**
+	 * Measure compression of one body
+	 *
+	 * @param name is type of the body
+	 * @param body is ASCII content of the frame
+	 */
+	private static void run(String name, byte[] body) {
+		FrameCompressor compressor = new FrameCompressor(0);
+
+		// Warm up the compiler
+		long deadline = System.nanoTime() + MEASURE_NANOS;
+		while (System.nanoTime() < deadline) {
+			compressor.compress(body, 0, body.length);
+		}
+
+		int compressed = compressor.compress(body, 0, body.length);
+		int frame = compressed < 0 ? body.length + 4 : compressed + 8;
+		double deflate = measure(() -> compressor.compress(body, 0, body.length));
+		double inflate = 0;
+		if (compressed >= 0) {
+			byte[] data = compressor.getCompressed().clone();
+			inflate = measure(() -> {
+				try {
+					compressor.decompress(data, compressed, body.length);
+				} catch (java.io.IOException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+		}
+
+		// Saved bits divided by CPU time gives bandwidth where both cost the same
+		long saved = (body.length + 4L) - frame;
+		String breakEven = saved <= 0 ? "never"
+				: String.format("%.0f Mbit/s", saved * 8 / ((deflate + inflate) / 1e6) / 1e6);
+		System.out.println(String.format("%-8s %8d %10d %8.2f %12.1f %12.1f %14s",
+				name, body.length, frame, (double)frame / (body.length + 4), deflate, inflate, breakEven));
+		compressor.end();
+	}
+
+	/**
+	 * @param task is measured operation
+	 * @return average duration of the operation in microseconds
+	 */
+	private static double measure(Runnable task) {
+		long count = 0;
+		long start = System.nanoTime();
+		long end;
+		do {
+			task.run();
+			count++;
+			end = System.nanoTime();
+		} while (end - start < MEASURE_NANOS);
+		return (end - start) / 1e3 / count;
+	}
+
+	/**
+	 * @param size is size of the body
+	 * @return personalised order confirmation text
+	 */
+	private static byte[] mailBody(int size) {
+		Random random = new Random(1);
+		StringBuilder body = new StringBuilder("Subject: Your order confirmation\r\n\r\nDear customer,\r\n");
+		while (body.length() < size) {
+			body.append("Thank you for your order ").append(100000 + random.nextInt(900000))
+				.append(". Item ").append(random.nextInt(500)).append(" will be shipped on ")
+				.append(1 + random.nextInt(28)).append(". please contact us if you have any questions.\r\n");
+		}
+		body.setLength(size);
+		return ConvertToASCII.getAsciiBytes(body.toString());
+	}
+
+	/**
+	 * @param size is size of the body
+	 * @return printable random text which does not compress well
+	 */
+	private static byte[] randomBody(int size) {
+		Random random = new Random(1);
+		byte[] body = new byte[size];
+		for (int i = 0; i < size; i++) {
+			body[i] = (byte)(33 + random.nextInt(94));
+		}
+		return body;
+	}
+}
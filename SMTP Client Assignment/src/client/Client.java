@@ -19,6 +19,7 @@ import java.util.logging.Logger;
 public class Client {
 	private int port = 50000;
 	private boolean verbose = true;
+	private boolean fastStart = false;
 	private final static Logger lOGGER = Logger.getLogger("ServerHandler");
 	private static Scanner scanner = new Scanner(System.in);
 
@@ -38,6 +39,16 @@ public class Client {
 		this.verbose = verbose;
 	}
 
+	/**
+	 * Fast start defers creation of the log handlers until the 
+	 * first record is logged, so short runs start faster.
+	 * 
+	 * @param fastStart if true log file is created on the first record
+	 */
+	public void setFastStart(boolean fastStart) {
+		this.fastStart = fastStart;
+	}
+
 	/**
 	 * This method will start client
 	 */
@@ -47,11 +58,8 @@ public class Client {
 		InitializeLogger();
 		
 		try {
-			// Create socket
-			Socket socket = new Socket("localhost", port);
-			
 			// Create new session
-			Session session = new Session(socket);
+			Session session = connect();
 
 			// Create new client handler
 			clientHandler = new ClientHandler(session, lOGGER, scanner);
@@ -67,16 +75,46 @@ public class Client {
 		}
 	}
 
+	/**
+	 * Open connection to the SMTP Server
+	 * 
+	 * @return new session
+	 * @throws IOException if the server is not available
+	 */
+	Session connect() throws IOException {
+		// Create socket
+		Socket socket = new Socket("localhost", port);
+
+		// Create new session
+		return new Session(socket);
+	}
+
+	/**
+	 * @return logger of the client
+	 */
+	Logger getLogger() {
+		return lOGGER;
+	}
+
 	/**
 	 * This method will initialise logger file and if the verbose is set
 	 * then it will also add console handler to print logs into the console.
+	 * In fast start mode handlers are created when the first record is logged.
 	 * 
 	 * @throws SecurityException is when the file handler fails to create file
 	 */
-	private void InitializeLogger(){
-		LogManager.getLogManager().reset();
+	void InitializeLogger(){
 		lOGGER.setLevel(Level.ALL);
 
+		if (fastStart) {
+			// Skip global handlers and create own handlers later
+			lOGGER.setUseParentHandlers(false);
+			lOGGER.addHandler(new DeferredHandler("logger.log", verbose));
+			return;
+		}
+
+		LogManager.getLogManager().reset();
+
 		// Print logger messages to the file
 		try {
 			FileHandler fileHandler = new FileHandler("logger.log");
@@ -102,12 +140,16 @@ public class Client {
 	/**
 	 * Start point of the program
 	 * 
-	 * @param args the command line arguments are not used
+	 * @param args the command line arguments, --fast-start skips 
+	 * the banner and defers creation of the log file
 	 */
 	public static void main(String[] args) {	
+		boolean fastStart = args.length > 0 && args[0].equalsIgnoreCase("--fast-start");
 		
 		// Print banner
-		printBanner();
+		if (!fastStart) {
+			printBanner();
+		}
 		
 		// Initialise port number to zero
 		int port = 0;
@@ -121,6 +163,7 @@ public class Client {
 		
 		// Create the Client
 		Client client = new Client(port, verbose);
+		client.setFastStart(fastStart);
 		client.StartClient();
 	}
 
@@ -1,7 +1,21 @@
 package client;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ingest.AddressValidator;
+import ingest.RecipientBatch;
+import journal.DeliveryJournal;
+import journal.DeliveryLedger;
+import journal.DeliveryRecord;
+import profiler.ProfileRecorder;
+import profiler.TransactionProfiler;
+import suppression.SuppressionIndex;
+import template.MailTemplate;
 
 /**
  * This class handles commands sended to the SMTP Server
@@ -10,8 +24,21 @@ import java.util.Scanner;
  * 
  */
 public class DataProcessing {
+	// Logger of the client
+	private static final Logger LOGGER = Logger.getLogger("ServerHandler");
+
 	private Session session;
 	private Scanner scanner;
+	private SuppressionIndex suppression;
+	private DeliveryJournal journal;
+	private DeliveryLedger ledger;
+	private List<String> recipients = new ArrayList<>();
+	private long messageCounter;
+	private int suppressedCount;
+	private int pendingCount;
+	private int deliveredCount;
+	private int rejectedCount;
+	private ProfileRecorder recorder;
 
 	/**
 	 * Constructor
@@ -24,6 +51,89 @@ public class DataProcessing {
 		this.scanner = scanner;
 	}
 
+	/**
+	 * Set index of addresses which must not receive mail.
+	 * Suppressed recipients are skipped before RCPT TO is sent.
+	 * 
+	 * @param suppression is suppression index or null to disable it
+	 */
+	public void setSuppressionIndex(SuppressionIndex suppression) {
+		this.suppression = suppression;
+	}
+
+	/**
+	 * Set journal which records outcome of each mail transaction
+	 * 
+	 * @param journal is delivery journal or null to disable it
+	 */
+	public void setDeliveryJournal(DeliveryJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Set ledger which prevents sending the same message to the
+	 * recipient twice. Recipients who already received the message, or
+	 * whose delivery is not confirmed, are skipped before RCPT TO.
+	 * 
+	 * @param ledger is delivery ledger or null to disable it
+	 */
+	public void setDeliveryLedger(DeliveryLedger ledger) {
+		this.ledger = ledger;
+	}
+
+	/**
+	 * Set profiler which measures phases of the mail transactions
+	 * of this session
+	 * 
+	 * @param profiler is transaction profiler or null to disable it
+	 */
+	public void setProfiler(TransactionProfiler profiler) {
+		recorder = profiler == null ? null : profiler.newRecorder();
+		session.setRecorder(recorder);
+	}
+
+	/**
+	 * Check if recipient is on the suppression list
+	 * 
+	 * @param address is normalized address of the recipient
+	 * @return true if the recipient must not receive mail
+	 */
+	private boolean isSuppressed(String address) {
+		return suppression != null && suppression.isSuppressed(address);
+	}
+
+	/**
+	 * @return number of recipients skipped by the last {@link #sendRecipients(String, RecipientBatch)}
+	 * because they are on the suppression list
+	 */
+	public int getSuppressedCount() {
+		return suppressedCount;
+	}
+
+	/**
+	 * @return number of recipients skipped by the last {@link #sendRecipients(String, RecipientBatch)}
+	 * because their delivery is PENDING in the ledger (may have been lost)
+	 */
+	public int getPendingCount() {
+		return pendingCount;
+	}
+
+	/**
+	 * @return number of recipients skipped by the last {@link #sendRecipients(String, RecipientBatch)}
+	 * because they already received the message
+	 */
+	public int getDeliveredCount() {
+		return deliveredCount;
+	}
+
+	/**
+	 * @return number of recipients skipped by the last {@link #sendRecipients(String, RecipientBatch)}
+	 * because the server rejected the message permanently
+	 */
+	public int getRejectedCount() {
+		return rejectedCount;
+	}
+
 	/**
 	 * Connection establishment check
 	 * 
@@ -80,6 +190,20 @@ public class DataProcessing {
 		while (validDomain);
 	}
 
+	/**
+	 * Send HELO Command with the given domain to the SMTP Server
+	 * 
+	 * @param domain is domain name of the client
+	 * @return true if server accepted the domain or HELO was already sent
+	 * 
+	 * @throws IOException if socket or data streams are unavailable 
+	 */
+	public boolean sendHelo(String domain) throws IOException {
+		session.write("HELO " + domain);
+		String serverResponse = session.read();
+		return serverResponse.startsWith("2") || serverResponse.startsWith("503");
+	}
+
 	/**
 	 * Send MAIL Command to the SMTP Server
 	 * 
@@ -87,6 +211,10 @@ public class DataProcessing {
 	 */
 	public void sendMailFrom() throws IOException {
 		boolean validMail = true;
+		recipients.clear();
+		if (recorder != null) {
+			recorder.beginTransaction();
+		}
 		do {
 			// Print message to the user console
 			System.out.println("\nWho do you want to send mail from: ");
@@ -127,6 +255,14 @@ public class DataProcessing {
 			// Get Recipient from user input
 			String recipient = scanner.nextLine();
 
+			// Recipient on the suppression list is never sent to the server,
+			// user input is normalized the same way as the index
+			String address = AddressValidator.normalize(recipient);
+			if (address != null && isSuppressed(address)) {
+				System.out.println("Recipient is on the suppression list.");
+				continue;
+			}
+
 			// Send Recipient to the SMTP Server
 			session.write("RCPT TO:<" + recipient + ">");
 
@@ -136,6 +272,8 @@ public class DataProcessing {
 
 			// Check if server response is OK
 			if(serverResponse.startsWith("2")) {
+				recipients.add(recipient);
+
 				// Check if user wants more recipients
 				if (userChoice("Do you want add another? [y/n]: ")) {
 					choice = true;
@@ -146,6 +284,101 @@ public class DataProcessing {
 		} while (choice);
 	}
 
+	/**
+	 * Ask the SMTP Server to accept compressed frames (XDEFLATE Command).
+	 * Compression is enabled only if the server confirms it, servers
+	 * which do not know the command reply with an error.
+	 * 
+	 * @param threshold is minimal size of the frame which is compressed
+	 * @return true if compression was enabled
+	 * 
+	 * @throws IOException if socket or data streams are unavailable 
+	 */
+	public boolean negotiateCompression(int threshold) throws IOException {
+		session.write("XDEFLATE");
+		if (!session.read().startsWith("2")) {
+			return false;
+		}
+		session.enableCompression(new FrameCompressor(threshold));
+		return true;
+	}
+
+	/**
+	 * Send MAIL Command with the given sender to the SMTP Server
+	 * 
+	 * @param sender is address of the sender
+	 * @return true if server accepted the sender
+	 * 
+	 * @throws IOException if socket or data streams are unavailable 
+	 */
+	public boolean sendMailFrom(String sender) throws IOException {
+		recipients.clear();
+		if (recorder != null) {
+			recorder.beginTransaction();
+		}
+		session.write("MAIL FROM:<" + sender + ">");
+		return session.read().startsWith("2");
+	}
+
+	/**
+	 * Send RCPT TO Command for each recipient of the batch
+	 * to the SMTP Server. Batch is validated and deduplicated 
+	 * by the ingestion, suppressed recipients are skipped.
+	 * 
+	 * @param batch is recipients of one mail transaction
+	 * @return recipients accepted by the server
+	 * 
+	 * @throws IOException if socket or data streams are unavailable 
+	 */
+	public List<String> sendRecipients(RecipientBatch batch) throws IOException {
+		return sendRecipients(null, batch);
+	}
+
+	/**
+	 * Send RCPT TO Command for each recipient of the batch who
+	 * did not receive the message yet. Batch is validated and 
+	 * deduplicated by the ingestion, suppressed recipients are skipped.
+	 * 
+	 * @param messageId is identifier of the message checked in the 
+	 * delivery ledger, null to skip the check
+	 * @param batch is recipients of one mail transaction
+	 * @return recipients accepted by the server
+	 * 
+	 * @throws IOException if socket or data streams are unavailable 
+	 */
+	public List<String> sendRecipients(String messageId, RecipientBatch batch) throws IOException {
+		List<String> accepted = new ArrayList<>(batch.size());
+		suppressedCount = 0;
+		pendingCount = 0;
+		deliveredCount = 0;
+		rejectedCount = 0;
+		for (String recipient : batch.getRecipients()) {
+			if (isSuppressed(recipient)) {
+				suppressedCount++;
+				continue;
+			}
+			if (ledger != null && messageId != null) {
+				DeliveryLedger.State state = ledger.getState(messageId, recipient);
+				if (state == DeliveryLedger.State.PENDING) {
+					pendingCount++;
+					continue;
+				} else if (state == DeliveryLedger.State.DELIVERED) {
+					deliveredCount++;
+					continue;
+				} else if (state == DeliveryLedger.State.REJECTED) {
+					rejectedCount++;
+					continue;
+				}
+			}
+			session.write("RCPT TO:<" + recipient + ">");
+			if (session.read().startsWith("2")) {
+				accepted.add(recipient);
+			}
+		}
+		recipients.addAll(accepted);
+		return accepted;
+	}
+
 	/**
 	 *  Send DATA Command and content of the mail to the SMTP Server
 	 * 
@@ -154,6 +387,9 @@ public class DataProcessing {
 	public void sendData() throws IOException {
 		String line;
 		String serverResponse = "";
+		int attempts = 0;
+		long startTime = System.currentTimeMillis();
+		long startNanos = System.nanoTime();
 
 		// Send DATA Command to the server
 		session.write("DATA");
@@ -204,6 +440,7 @@ public class DataProcessing {
 
 				// Send email message to the server
 				session.write(data);
+				attempts++;
 
 				// Get Server response
 				serverResponse = session.read();
@@ -240,6 +477,135 @@ public class DataProcessing {
 				System.out.println(response);
 			}
 		} while(!serverResponse.startsWith("2"));
+
+		// Record outcome of the transaction
+		recordDelivery(newMessageId(), serverResponse, attempts, startTime, startNanos);
+	}
+
+	/**
+	 * Send DATA Command and content of the mail merged from
+	 * the compiled template to the SMTP Server. Message gets a new
+	 * identifier, so it can not be used with the delivery ledger.
+	 * 
+	 * @param template is compiled mail template
+	 * @param values is value of each field of the template
+	 * @return server response to the message, or to the DATA
+	 * command if server is not ready to receive the message
+	 * 
+	 * @throws IOException if socket or data streams are unavailable 
+	 * @throws IllegalStateException if the delivery ledger is set
+	 */
+	public String sendData(MailTemplate template, String[] values) throws IOException {
+		if (ledger != null) {
+			// New identifier never matches the ledger, it would only fill it with keys
+			throw new IllegalStateException("Message ID is required with the delivery ledger");
+		}
+		return sendData(newMessageId(), template, values);
+	}
+
+	/**
+	 * Send DATA Command and content of the mail merged from
+	 * the compiled template to the SMTP Server
+	 * 
+	 * @param messageId is identifier of the message used by the delivery journal
+	 * @param template is compiled mail template
+	 * @param values is value of each field of the template
+	 * @return server response to the message, or to the DATA
+	 * command if server is not ready to receive the message
+	 * 
+	 * @throws IOException if socket or data streams are unavailable 
+	 */
+	public String sendData(String messageId, MailTemplate template, String[] values) throws IOException {
+		long startTime = System.currentTimeMillis();
+		long startNanos = System.nanoTime();
+
+		// Send DATA Command to the server
+		session.write("DATA");
+
+		// Server Response to the data command
+		String response = session.read();
+		if (!response.startsWith("3")) {
+			recordDelivery(messageId, response, 0, startTime, startNanos);
+			return response;
+		}
+
+		// Message may be delivered from this moment
+		if (ledger != null) {
+			for (String recipient : recipients) {
+				ledger.markPending(messageId, recipient);
+			}
+		}
+
+		// Send merged email message to the server
+		boolean replied = false;
+		try {
+			session.write(template, values);
+
+			// Get Server response
+			response = session.read();
+			replied = true;
+		} finally {
+			if (!replied) {
+				// Connection was lost, server may have accepted the message (reply code 0)
+				recordDelivery(messageId, null, 1, startTime, startNanos);
+			}
+		}
+		if (ledger != null) {
+			// Permanent rejection would repeat, only temporary failure is sent again
+			for (String recipient : recipients) {
+				if (response.startsWith("2")) {
+					ledger.markDelivered(messageId, recipient);
+				} else if (response.startsWith("5")) {
+					ledger.markRejected(messageId, recipient);
+				} else {
+					ledger.markFailed(messageId, recipient);
+				}
+			}
+		}
+		recordDelivery(messageId, response, 1, startTime, startNanos);
+		return response;
+	}
+
+	/**
+	 * Record outcome of the transaction for each accepted recipient
+	 * and clear the recipients of the transaction. Records are written
+	 * to the journal file at the end of each transaction, so they are
+	 * not lost when the process is killed. Journal errors are logged
+	 * and never fail the transaction, the server already replied.
+	 * 
+	 * @param messageId is identifier of the message
+	 * @param response is final server response
+	 * @param attempts is number of times the message was sent
+	 * @param startTime is start of the transaction in milliseconds since epoch
+	 * @param startNanos is start of the transaction from System.nanoTime()
+	 */
+	private void recordDelivery(String messageId, String response, int attempts,
+			long startTime, long startNanos) {
+		int replyCode = DeliveryRecord.parseReplyCode(response);
+		if (recorder != null) {
+			recorder.endTransaction(replyCode);
+		}
+		if (journal != null) {
+			long duration = (System.nanoTime() - startNanos) / 1000;
+			try {
+				for (String recipient : recipients) {
+					journal.append(new DeliveryRecord(messageId, recipient, replyCode, attempts, startTime, duration));
+				}
+				journal.flush();
+			} catch (IOException e) {
+				LOGGER.log(Level.SEVERE, "Outcome of message " + messageId + " was not journaled", e);
+			}
+		}
+		recipients.clear();
+	}
+
+	/**
+	 * Generate identifier of the message which is unique for this client
+	 * 
+	 * @return message identifier
+	 */
+	private String newMessageId() {
+		return System.currentTimeMillis() + "." + (++messageCounter) + "@smtp-client";
 	}
 
 	/**
@@ -417,6 +783,7 @@ public class DataProcessing {
 	 * @throws IOException if socket or data streams are unavailable
 	 */
 	public void sendReset() throws IOException {
+		recipients.clear();
 		session.write("RSET");
 		session.read();
 	}
@@ -0,0 +1,95 @@
+package client;
+
+import java.io.IOException;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.FileHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Log handler which creates the file and console handlers
+ * when the first record is published. Short runs which do not
+ * log anything never open the log file.
+ *
+ * @author Martin Holecek
+ *
+ */
+public class DeferredHandler extends Handler {
+	private final String fileName;
+	private final boolean verbose;
+	private Handler[] handlers;
+
+	/**
+	 * Constructor
+	 *
+	 * @param fileName is name of the log file
+	 * @param verbose if true errors are also printed to the console
+	 */
+	public DeferredHandler(String fileName, boolean verbose) {
+		this.fileName = fileName;
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Create handlers on the first record and pass the record to them
+	 *
+	 * @param record is log record
+	 */
+	@Override
+	public synchronized void publish(LogRecord record) {
+		if (!isLoggable(record)) {
+			return;
+		}
+		if (handlers == null) {
+			handlers = createHandlers();
+		}
+		for (Handler handler : handlers) {
+			handler.publish(record);
+		}
+	}
+
+	/**
+	 * Create the same handlers as Client does without fast start
+	 *
+	 * @return file handler and console handler
+	 */
+	private Handler[] createHandlers() {
+		Handler file;
+		try {
+			file = new FileHandler(fileName);
+			file.setLevel(Level.ALL);
+		} catch (IOException | SecurityException ex) {
+			// If file handler fail to load log messages in the console
+			file = new ConsoleHandler();
+			file.setLevel(Level.SEVERE);
+		}
+
+		if (!verbose) {
+			return new Handler[] { file };
+		}
+
+		// Print logger messages in the console
+		ConsoleHandler console = new ConsoleHandler();
+		console.setLevel(Level.SEVERE);
+		return new Handler[] { file, console };
+	}
+
+	@Override
+	public synchronized void flush() {
+		if (handlers != null) {
+			for (Handler handler : handlers) {
+				handler.flush();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (handlers != null) {
+			for (Handler handler : handlers) {
+				handler.close();
+			}
+		}
+	}
+}
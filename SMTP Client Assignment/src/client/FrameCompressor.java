@@ -0,0 +1,165 @@
+package client;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import ascii.ConvertToASCII;
+
+/**
+ * Deflate compression of the session frames. Each frame is compressed
+ * independently with the dictionary shared by both ends of the session,
+ * so short frames compress well and a lost frame does not break the
+ * following frames. Frames smaller than the threshold, or frames which
+ * would not get smaller, are sent without compression.
+ *
+ * @author Martin Holecek
+ *
+ */
+public class FrameCompressor {
+	/** Frames shorter than this are not compressed by default */
+	public static final int DEFAULT_THRESHOLD = 1024;
+	/** Frames longer than this are treated as damaged */
+	public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	/**
+	 * Text which is common in the mail messages. Deflate finds matches
+	 * in the dictionary, the most common strings are at the end.
+	 */
+	private static final byte[] DEFAULT_DICTIONARY = ConvertToASCII.getAsciiBytes(
+			"unsubscribe privacy policy view in browser all rights reserved "
+			+ "Content-Transfer-Encoding: 7bit\r\nContent-Type: text/plain; charset=us-ascii\r\n"
+			+ "MIME-Version: 1.0\r\nMessage-ID: <Date: Reply-To: Cc: To: From: Subject: "
+			+ "thank you for your order please contact us if you have any questions "
+			+ "regards, best wishes, Dear customer, Hello, http://www. https://www. .com "
+			+ " the and of to in is that for with on your you this be are from\r\n\r\n");
+
+	private final byte[] dictionary;
+	private final int threshold;
+	private final Deflater deflater;
+	private final Inflater inflater;
+	private byte[] compressed = new byte[1024];
+
+	/**
+	 * Constructor
+	 *
+	 * @param dictionary is preset dictionary used by both ends of the session
+	 * @param threshold is minimal size of the frame which is compressed
+	 */
+	public FrameCompressor(byte[] dictionary, int threshold) {
+		this.dictionary = dictionary.clone();
+		this.threshold = threshold;
+		this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		this.inflater = new Inflater(true);
+	}
+
+	/**
+	 * Constructor with the default dictionary
+	 *
+	 * @param threshold is minimal size of the frame which is compressed
+	 */
+	public FrameCompressor(int threshold) {
+		this(DEFAULT_DICTIONARY, threshold);
+	}
+
+	/**
+	 * Constructor with the default dictionary and threshold
+	 */
+	public FrameCompressor() {
+		this(DEFAULT_DICTIONARY, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Compress the frame
+	 *
+	 * @param data is content of the frame
+	 * @param offset is start of the frame in the array
+	 * @param length is size of the frame
+	 * @return size of the compressed frame in {@link #getCompressed()},
+	 * or -1 if the frame must be sent without compression
+	 */
+	public int compress(byte[] data, int offset, int length) {
+		if (length < threshold) {
+			return -1;
+		}
+		deflater.reset();
+		deflater.setDictionary(dictionary);
+		deflater.setInput(data, offset, length);
+		deflater.finish();
+
+		// Compressed frame must be smaller than the original
+		if (compressed.length < length) {
+			compressed = new byte[length];
+		}
+		int size = 0;
+		while (!deflater.finished() && size < length) {
+			size += deflater.deflate(compressed, size, length - size);
+		}
+		return deflater.finished() && size < length ? size : -1;
+	}
+
+	/**
+	 * @return buffer with the last compressed frame
+	 */
+	public byte[] getCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Release native memory of the compressor
+	 */
+	public void end() {
+		deflater.end();
+		inflater.end();
+	}
+
+	/**
+	 * Decompress the frame
+	 *
+	 * @param data is compressed frame
+	 * @param length is size of the compressed frame
+	 * @param originalLength is size of the frame before compression
+	 * @return content of the frame
+	 * @throws IOException if the frame is damaged
+	 */
+	public byte[] decompress(byte[] data, int length, int originalLength) throws IOException {
+		checkLengths(length, originalLength);
+		if (length > data.length) {
+			throw new IOException("Compressed frame is damaged");
+		}
+		byte[] frame = new byte[originalLength];
+		inflater.reset();
+		inflater.setDictionary(dictionary);
+		inflater.setInput(data, 0, length);
+		try {
+			int size = 0;
+			while (size < originalLength && !inflater.finished()) {
+				int inflated = inflater.inflate(frame, size, originalLength - size);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				size += inflated;
+			}
+			if (size != originalLength) {
+				throw new IOException("Compressed frame is damaged");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Compressed frame is damaged", e);
+		}
+		return frame;
+	}
+
+	/**
+	 * Check lengths received from the peer before any buffer is allocated
+	 *
+	 * @param length is size of the compressed frame
+	 * @param originalLength is size of the frame before compression
+	 * @throws IOException if any length is negative or too large
+	 */
+	public static void checkLengths(int length, int originalLength) throws IOException {
+		if (length < 0 || length > MAX_FRAME_LENGTH || originalLength < 0 || originalLength > MAX_FRAME_LENGTH) {
+			throw new IOException("Compressed frame is damaged");
+		}
+	}
+}
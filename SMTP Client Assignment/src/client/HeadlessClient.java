@@ -0,0 +1,531 @@
+package client;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ingest.IngestResult;
+import ingest.ManifestIngester;
+import ingest.RecipientBatch;
+import journal.DeliveryJournal;
+import journal.DeliveryLedger;
+import profiler.TransactionProfiler;
+import suppression.SuppressionIndex;
+import template.MailTemplate;
+
+/**
+ * Entry point which sends the template to all recipients of the
+ * manifest without any user input. It always uses fast start
+ * (no banner and log file is created on the first record), so it
+ * is suitable for short lived senders and for class data sharing.
+ *
+ * Template fields ${domain} and ${messageId} are filled for each
+ * transaction and each message is sent to the whole batch of recipients.
+ * Other fields are filled from the manifest columns after the address,
+ * which are named by --columns. Template with such per-recipient fields
+ * is sent in a separate transaction to each recipient, manifest lines
+ * without all named columns are rejected. Template with fields which are
+ * not named is refused.
+ *
+ * With --ledger and a stable --message-id (required with the ledger)
+ * a restarted run skips the recipients who already received the message,
+ * whose message was rejected permanently (5xx) or whose delivery was in
+ * progress when the connection was lost. Number
+ * of the skipped PENDING recipients is printed at the end, after they were
+ * checked in the journal --retry-pending sends them again.
+ *
+ * Manifest is read while the messages are sent, each full batch is
+ * queued for delivery as soon as it is ready. Batches are delivered over
+ * several connections which are opened before the first message. On
+ * SIGTERM the client stops taking new batches, waits for messages in
+ * progress and sends QUIT. Journal and ledger are closed after the
+ * delivery threads recorded outcomes of the closed connections.
+ *
+ * With --compress large messages are compressed when the server
+ * supports it.
+ *
+ * With --profile the phases of the transactions are measured, the
+ * breakdown is printed at the end and written to the file in collapsed
+ * stack format. Flight recorder events are emitted when JFR is recording.
+ *
+ * @author Martin Holecek
+ *
+ */
+public class HeadlessClient {
+	private static final List<String> FIELDS = Arrays.asList("domain", "messageId");
+	private static final int DOMAIN_FIELD = -1;
+	private static final int MESSAGE_ID_FIELD = -2;
+	/** Number of batches queued for each delivery thread */
+	private static final int QUEUED_BATCHES = 4;
+	/** Time for the delivery threads to record outcomes of the closed connections */
+	private static final long WORKER_TIMEOUT_MILLIS = 5000;
+	private static final Job END = new Job(null, -1);
+
+	/**
+	 * Batch handed from the manifest reader to the delivery threads
+	 */
+	private static class Job {
+		final RecipientBatch batch;
+		final int number;
+
+		Job(RecipientBatch batch, int number) {
+			this.batch = batch;
+			this.number = number;
+		}
+	}
+	private static final String USAGE = "Usage: HeadlessClient --port <port> --helo <domain> --from <sender>"
+			+ " --template <file> --manifest <file> [--columns <name,...>] [--suppression <index>] [--journal <file>]"
+			+ " [--ledger <file> [--retry-pending]] [--message-id <id>] [--compress <threshold>]"
+			+ " [--sessions <count>] [--drain-timeout <ms>] [--profile <file>] [--profile-rate <n>] [--quiet]";
+
+	/**
+	 * Start point of the headless client
+	 *
+	 * @param args the command line arguments, see usage
+	 */
+	public static void main(String[] args) {
+		long start = System.nanoTime();
+
+		String port = null;
+		String helo = null;
+		String from = null;
+		String templateFile = null;
+		String manifestFile = null;
+		String columnNames = null;
+		String suppressionFile = null;
+		String journalFile = null;
+		String ledgerFile = null;
+		String messageId = null;
+		String sessions = "1";
+		String drainTimeout = "10000";
+		String profileFile = null;
+		String profileRate = "1";
+		String compress = "-1";
+		boolean verbose = true;
+		boolean retryPending = false;
+
+		// Read command line arguments
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (option.equals("--quiet")) {
+				verbose = false;
+				continue;
+			}
+			if (option.equals("--retry-pending")) {
+				retryPending = true;
+				continue;
+			}
+			if (i + 1 == args.length) {
+				exitWithUsage("Missing value of " + option);
+			}
+			String value = args[++i];
+			switch (option) {
+			case "--port":
+				port = value;
+				break;
+			case "--helo":
+				helo = value;
+				break;
+			case "--from":
+				from = value;
+				break;
+			case "--template":
+				templateFile = value;
+				break;
+			case "--manifest":
+				manifestFile = value;
+				break;
+			case "--columns":
+				columnNames = value;
+				break;
+			case "--suppression":
+				suppressionFile = value;
+				break;
+			case "--journal":
+				journalFile = value;
+				break;
+			case "--ledger":
+				ledgerFile = value;
+				break;
+			case "--message-id":
+				messageId = value;
+				break;
+			case "--sessions":
+				sessions = value;
+				break;
+			case "--drain-timeout":
+				drainTimeout = value;
+				break;
+			case "--profile":
+				profileFile = value;
+				break;
+			case "--profile-rate":
+				profileRate = value;
+				break;
+			case "--compress":
+				compress = value;
+				break;
+			default:
+				exitWithUsage("Unknown option " + option);
+			}
+		}
+		if (port == null || helo == null || from == null || templateFile == null || manifestFile == null) {
+			exitWithUsage("Missing required option");
+		}
+		List<String> columns = new ArrayList<>();
+		if (columnNames != null) {
+			for (String name : columnNames.split(",")) {
+				columns.add(name.trim());
+			}
+			if (!Collections.disjoint(columns, FIELDS)) {
+				exitWithUsage("Columns can not be named " + FIELDS);
+			}
+		}
+		if (ledgerFile != null && messageId == null) {
+			// Generated IDs change on every run, so the ledger would never find duplicates
+			exitWithUsage("--ledger requires stable --message-id");
+		}
+
+		int portNumber = 0;
+		int sessionCount = 0;
+		long drainMillis = 0;
+		int sampleRate = 0;
+		int compressionThreshold = -1;
+		try {
+			portNumber = Integer.parseInt(port);
+			sessionCount = Integer.parseInt(sessions);
+			drainMillis = Long.parseLong(drainTimeout);
+			sampleRate = Integer.parseInt(profileRate);
+			compressionThreshold = Integer.parseInt(compress);
+		} catch (NumberFormatException e) {
+			exitWithUsage("Port, sessions, drain timeout, profile rate and compression threshold must be numbers!");
+		}
+		if (sessionCount < 1 || sampleRate < 1) {
+			exitWithUsage("Sessions and profile rate must be positive");
+		}
+
+		Client client = new Client(portNumber, verbose);
+		client.setFastStart(true);
+		client.InitializeLogger();
+
+		try {
+			MailTemplate template = MailTemplate.compile(
+					new String(Files.readAllBytes(Paths.get(templateFile)), StandardCharsets.UTF_8));
+			List<String> unknown = new ArrayList<>(Arrays.asList(template.getFieldNames()));
+			unknown.removeAll(FIELDS);
+			unknown.removeAll(columns);
+			if (!unknown.isEmpty()) {
+				exitWithUsage("Template fields " + unknown + " can not be filled, name the manifest columns with --columns");
+			}
+			DeliveryJournal journal = journalFile == null ? null : DeliveryJournal.open(Paths.get(journalFile));
+			SessionLifecycle lifecycle = new SessionLifecycle(client, helo, sessionCount, client.getLogger());
+			if (suppressionFile != null) {
+				lifecycle.setSuppressionIndex(SuppressionIndex.open(Paths.get(suppressionFile)));
+			}
+			lifecycle.setDeliveryJournal(journal);
+			DeliveryLedger ledger = ledgerFile == null ? null : DeliveryLedger.open(Paths.get(ledgerFile));
+			if (ledger != null && retryPending) {
+				System.out.println("Released " + ledger.releasePending() + " pending deliveries");
+			}
+			lifecycle.setDeliveryLedger(ledger);
+			TransactionProfiler profiler = profileFile == null ? null : new TransactionProfiler(sampleRate);
+			lifecycle.setProfiler(profiler);
+			lifecycle.setCompressionThreshold(compressionThreshold);
+
+			// Drain connections, close journal and ledger on normal exit and on SIGTERM.
+			// Logging may be already closed in the shutdown hook, errors are printed.
+			ExecutorService workers = Executors.newFixedThreadPool(sessionCount);
+			long drain = drainMillis;
+			AtomicBoolean stopped = new AtomicBoolean();
+			Runnable stop = () -> {
+				if (stopped.compareAndSet(false, true)) {
+					int unfinished = lifecycle.shutdown(drain);
+					if (unfinished > 0) {
+						System.err.println(unfinished + " deliveries did not finish before shutdown deadline");
+					}
+					awaitWorkers(workers);
+					close(journal);
+					close(ledger);
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(new Thread(stop, "smtp-drain"));
+
+			try (BufferedReader manifest = Files.newBufferedReader(Paths.get(manifestFile), StandardCharsets.UTF_8)) {
+				// Open and greet connections before the first message
+				lifecycle.start();
+				deliver(lifecycle, workers, sessionCount, template, manifest, columns, from, messageId, start,
+						client.getLogger());
+			} finally {
+				stop.run();
+			}
+
+			// Print and save phase breakdown
+			if (profiler != null) {
+				profiler.dump(System.out);
+				try (Writer writer = Files.newBufferedWriter(Paths.get(profileFile), StandardCharsets.US_ASCII)) {
+					profiler.dumpCollapsed(writer);
+				}
+			}
+		} catch (IOException e) {
+			client.getLogger().log(Level.SEVERE, "Headless delivery failed", e);
+			System.out.println("\nIO Exception, Program Terminated ....");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.out.println("\nDelivery interrupted, Program Terminated ....");
+		}
+	}
+
+	/**
+	 * Send template to each batch of the recipients. Manifest is read
+	 * on the calling thread, each session has its own thread which takes
+	 * the next queued batch. When the template uses manifest columns each
+	 * batch has only one recipient. Batch which fails on the lost connection is
+	 * counted as failed and the thread continues with the next batch on
+	 * a new connection. Delivery threads are never interrupted, interrupted
+	 * thread would close the journal and ledger files.
+	 *
+	 * @param lifecycle provides connections to the SMTP Server
+	 * @param workers runs the delivery threads
+	 * @param threads is number of parallel deliveries
+	 * @param template is compiled mail template
+	 * @param manifest is source of the recipients
+	 * @param columns is names of the manifest columns after the address
+	 * @param from is address of the sender
+	 * @param campaignId is message ID of all batches, or null to generate ID for each batch
+	 * @param start is start of the program from System.nanoTime()
+	 * @param logger is used to log any errors to the file or console
+	 * @throws IOException if the delivery thread failed
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	private static void deliver(SessionLifecycle lifecycle, ExecutorService workers, int threads, MailTemplate template,
+			Reader manifest, List<String> columns, String from, String campaignId, long start, Logger logger)
+			throws IOException, InterruptedException {
+		String[] fields = template.getFieldNames();
+
+		// Value of each field is taken from the column of the recipient, or it is domain or message ID
+		int[] sources = new int[fields.length];
+		for (int field = 0; field < fields.length; field++) {
+			sources[field] = columns.indexOf(fields[field]);
+			if (sources[field] < 0) {
+				sources[field] = fields[field].equals("domain") ? DOMAIN_FIELD : MESSAGE_ID_FIELD;
+			}
+		}
+		boolean perRecipient = Arrays.stream(sources).anyMatch(source -> source >= 0);
+		BlockingQueue<Job> queue = new ArrayBlockingQueue<>(threads * QUEUED_BATCHES);
+		AtomicInteger delivered = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		AtomicInteger suppressed = new AtomicInteger();
+		AtomicInteger pending = new AtomicInteger();
+		AtomicInteger alreadyDelivered = new AtomicInteger();
+		AtomicInteger rejected = new AtomicInteger();
+		AtomicLong firstMessage = new AtomicLong(-1);
+		long runId = System.currentTimeMillis();
+
+		List<Future<?>> running = new ArrayList<>();
+		for (int thread = 0; thread < threads; thread++) {
+			running.add(workers.submit(() -> {
+				String[] values = new String[fields.length];
+				Job job;
+				while ((job = queue.take()) != END) {
+					RecipientBatch batch = job.batch;
+					String messageId = campaignId != null ? campaignId
+							: runId + "." + job.number + "@" + batch.getDomain();
+					String[] recipientColumns = perRecipient ? batch.getColumns(0) : null;
+					try {
+						lifecycle.execute(process -> {
+							// Start transaction and send recipients
+							if (!process.sendMailFrom(from)) {
+								process.sendReset();
+								return;
+							}
+							List<String> accepted = process.sendRecipients(messageId, batch);
+							suppressed.addAndGet(process.getSuppressedCount());
+							pending.addAndGet(process.getPendingCount());
+							alreadyDelivered.addAndGet(process.getDeliveredCount());
+							rejected.addAndGet(process.getRejectedCount());
+							if (accepted.isEmpty()) {
+								process.sendReset();
+								return;
+							}
+
+							// Fill fields of the template, unknown fields were refused at start
+							for (int field = 0; field < fields.length; field++) {
+								if (sources[field] >= 0) {
+									values[field] = recipientColumns[sources[field]];
+								} else {
+									values[field] = sources[field] == DOMAIN_FIELD ? batch.getDomain() : messageId;
+								}
+							}
+
+							if (process.sendData(messageId, template, values).startsWith("2")) {
+								delivered.incrementAndGet();
+								firstMessage.compareAndSet(-1, (System.nanoTime() - start) / 1000000);
+							}
+						});
+					} catch (IOException e) {
+						failed.incrementAndGet();
+						logger.log(Level.WARNING, "Delivery of batch " + job.number + " (" + batch.getDomain() + ") failed", e);
+					}
+				}
+				return null;
+			}));
+		}
+		workers.shutdown();
+
+		// Read manifest and queue full batches while the threads deliver
+		AtomicInteger batches = new AtomicInteger();
+		try {
+			// Template with per-recipient fields is sent to each recipient separately
+			ManifestIngester ingester = new ManifestIngester(ForkJoinPool.commonPool(),
+					ManifestIngester.DEFAULT_CHUNK_SIZE, perRecipient ? 1 : ManifestIngester.DEFAULT_BATCH_SIZE);
+			if (perRecipient) {
+				ingester.setColumnCount(columns.size());
+			}
+			IngestResult result = ingester.ingest(manifest,
+					batch -> handOver(queue, new Job(batch, batches.getAndIncrement()), running));
+			System.out.println("Recipients: " + result.getAccepted() + " valid, " + result.getRejected()
+					+ " invalid, " + result.getDuplicates() + " duplicate");
+			for (int thread = 0; thread < threads; thread++) {
+				handOver(queue, END, running);
+			}
+		} catch (IllegalStateException e) {
+			// Delivery threads stopped, the reason is reported below
+			stopWorkers(queue, threads);
+		} catch (IOException | InterruptedException e) {
+			// Manifest failed, threads waiting for the next batch are stopped
+			stopWorkers(queue, threads);
+			throw e;
+		}
+
+		// Wait for all threads, so none of them is recording outcome when the files are closed
+		Throwable failure = null;
+		for (Future<?> future : running) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause();
+				}
+			}
+		}
+		if (failure instanceof IOException) {
+			throw (IOException)failure;
+		} else if (failure instanceof IllegalStateException) {
+			// Shutdown hook stopped the delivery
+			System.out.println("Delivery stopped by shutdown");
+		} else if (failure != null) {
+			throw new IOException(failure);
+		}
+
+		System.out.println("Delivered " + delivered.get() + " of " + batches.get() + " messages"
+				+ (failed.get() == 0 ? "" : ", " + failed.get() + " failed on connection errors")
+				+ (firstMessage.get() < 0 ? "" : ", time to first message " + firstMessage.get() + " ms"));
+		if (suppressed.get() > 0 || alreadyDelivered.get() > 0 || pending.get() > 0 || rejected.get() > 0) {
+			System.out.println("Skipped recipients: " + suppressed.get() + " suppressed, "
+					+ alreadyDelivered.get() + " already delivered, " + pending.get() + " pending, "
+					+ rejected.get() + " rejected");
+		}
+		if (pending.get() > 0) {
+			System.out.println("Pending deliveries may have been lost, check the journal and run with --retry-pending");
+		}
+	}
+
+	/**
+	 * Queue the batch for delivery, wait while the queue is full
+	 *
+	 * @param queue is queue of batches read by delivery threads
+	 * @param job is batch or the end of the manifest
+	 * @param running is delivery threads
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 * @throws IllegalStateException if a delivery thread stopped and the queue would not be emptied
+	 */
+	private static void handOver(BlockingQueue<Job> queue, Job job, List<Future<?>> running)
+			throws InterruptedException {
+		while (!queue.offer(job, 100, TimeUnit.MILLISECONDS)) {
+			for (Future<?> future : running) {
+				if (future.isDone()) {
+					throw new IllegalStateException("Delivery stopped");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop delivery threads after their current batch. Queued batches
+	 * are dropped and each thread takes the end of the manifest.
+	 *
+	 * @param queue is queue of batches read by delivery threads
+	 * @param threads is number of delivery threads
+	 */
+	private static void stopWorkers(BlockingQueue<Job> queue, int threads) {
+		// Only this thread adds to the queue, so the end always fits
+		queue.clear();
+		for (int thread = 0; thread < threads; thread++) {
+			queue.offer(END);
+		}
+	}
+
+	/**
+	 * Wait until the delivery threads record outcomes of their transactions
+	 *
+	 * @param workers runs the delivery threads
+	 */
+	private static void awaitWorkers(ExecutorService workers) {
+		workers.shutdown();
+		try {
+			if (!workers.awaitTermination(WORKER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				System.err.println("Delivery threads did not stop, outcomes of their transactions may be missing");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Write buffered records of the journal or ledger and close it
+	 *
+	 * @param resource is delivery journal, delivery ledger or null
+	 */
+	private static void close(Closeable resource) {
+		if (resource != null) {
+			try {
+				resource.close();
+			} catch (IOException e) {
+				System.err.println("Delivery records were not closed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Print error and usage and terminate the program
+	 *
+	 * @param error is description of the wrong argument
+	 */
+	private static void exitWithUsage(String error) {
+		System.out.println(error);
+		System.out.println(USAGE);
+		System.exit(2);
+	}
+}
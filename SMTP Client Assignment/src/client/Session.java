@@ -1,16 +1,27 @@
 package client;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 
 import ascii.ConvertToASCII;
+import profiler.Phase;
+import profiler.ProfileRecorder;
+import template.MailTemplate;
+import template.MergeBuffer;
 
 /**
  * This Class creates Session between 
  * server and client.
  * 
+ * Each message is sent as a frame: length (int) and ASCII bytes.
+ * When compression is enabled, large frames are sent as: length of
+ * the compressed data with the highest bit set (int), original
+ * length (int) and data compressed by {@link FrameCompressor}.
+ * 
  * @author Martin Holecek
  *
  */
@@ -19,6 +30,21 @@ public class Session {
 	public Socket socket = null;
 	private DataInputStream input = null;
 	private DataOutputStream output = null;
+	private MergeBuffer mergeBuffer = new MergeBuffer();
+	private ProfileRecorder recorder = null;
+	private FrameCompressor compressor = null;
+	private FrameCompressor decompressor = null;
+	private FrameBuffer frame = null;
+	private DataOutputStream frameOutput = null;
+
+	/**
+	 * Byte array stream which gives access to its buffer
+	 */
+	private static class FrameBuffer extends ByteArrayOutputStream {
+		byte[] buffer() {
+			return buf;
+		}
+	}
 
 	/**
 	 * Constructor
@@ -29,13 +55,45 @@ public class Session {
 	public Session(Socket socket) throws IOException {
 		this.socket = socket;
 		input = new DataInputStream(socket.getInputStream());
-		output = new DataOutputStream(socket.getOutputStream());
+		output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	/**
+	 * Set recorder which measures phases of the transactions
+	 * 
+	 * @param recorder is profile recorder or null to disable profiling
+	 */
+	public void setRecorder(ProfileRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Compress frames which are larger than the threshold. Must be
+	 * enabled only when the server confirmed that it supports compression.
+	 * 
+	 * @param compressor compresses the frames of this session
+	 */
+	public void enableCompression(FrameCompressor compressor) {
+		this.compressor = compressor;
+		this.decompressor = compressor;
+		frame = new FrameBuffer();
+		frameOutput = new DataOutputStream(frame);
+	}
+
+	/**
+	 * @return true if large frames are compressed
+	 */
+	public boolean isCompressionEnabled() {
+		return compressor != null;
 	}
 
 	/**
 	 * Close data stream and socket channel
 	 */
 	public void close() {
+		if (decompressor != null) {
+			decompressor.end();
+		}
 		try {
 			input.close();
 			output.close();
@@ -51,11 +109,101 @@ public class Session {
 	 * @throws IOException if the DataStream is not available
 	 */
 	public void write(String msg) throws IOException {
+		if (recorder != null && recorder.isSampling()) {
+			long start = System.nanoTime();
+			byte[] message = ConvertToASCII.getAsciiBytes(msg);
+			long encoded = System.nanoTime();
+			writeFrame(message, 0, message.length);
+			long written = System.nanoTime();
+			output.flush();
+			long flushed = System.nanoTime();
+			recorder.phase(Phase.ENCODE, start, encoded, message.length);
+			recorder.phase(Phase.WRITE, encoded, written, message.length + 4);
+			recorder.phase(Phase.FLUSH, written, flushed, message.length + 4);
+			return;
+		}
+
 		byte[] message = ConvertToASCII.getAsciiBytes(msg);
-		output.writeInt(message.length);
+		writeFrame(message, 0, message.length);
 		output.flush();
-		output.write(message);
+	}
+
+	/**
+	 * Merge field values into the compiled template and send it
+	 * as a single message (7-bits ASCII)
+	 * @param template is compiled mail template
+	 * @param values is value of each field of the template
+	 * @throws IOException if the DataStream is not available
+	 */
+	public void write(MailTemplate template, String[] values) throws IOException {
+		if (compressor != null) {
+			writeCompressed(template, values);
+			return;
+		}
+		if (recorder != null && recorder.isSampling()) {
+			// Merge encodes fields and writes segments together
+			long start = System.nanoTime();
+			int size = output.size();
+			template.writeTo(output, values, mergeBuffer);
+			long merged = System.nanoTime();
+			output.flush();
+			long flushed = System.nanoTime();
+			recorder.phase(Phase.ENCODE, start, merged, output.size() - size);
+			recorder.phase(Phase.FLUSH, merged, flushed, output.size() - size);
+			return;
+		}
+
+		template.writeTo(output, values, mergeBuffer);
+		output.flush();
+	}
+
+	/**
+	 * Merge template into the frame buffer, so the frame can be compressed
+	 * @param template is compiled mail template
+	 * @param values is value of each field of the template
+	 * @throws IOException if the DataStream is not available
+	 */
+	private void writeCompressed(MailTemplate template, String[] values) throws IOException {
+		boolean sampled = recorder != null && recorder.isSampling();
+		long start = sampled ? System.nanoTime() : 0;
+
+		// Merged template starts with its length
+		frame.reset();
+		template.writeTo(frameOutput, values, mergeBuffer);
+		long merged = sampled ? System.nanoTime() : 0;
+		int size = writeFrame(frame.buffer(), 4, frame.size() - 4);
+		long written = sampled ? System.nanoTime() : 0;
 		output.flush();
+		long flushed = sampled ? System.nanoTime() : 0;
+
+		// Events are emitted after all phases are measured, so their cost is not measured
+		if (sampled) {
+			recorder.phase(Phase.ENCODE, start, merged, frame.size() - 4);
+			recorder.phase(Phase.WRITE, merged, written, size);
+			recorder.phase(Phase.FLUSH, written, flushed, size);
+		}
+	}
+
+	/**
+	 * Write frame to the output buffer, compressed if compression
+	 * is enabled and the frame is large enough
+	 * @param data is content of the frame
+	 * @param offset is start of the frame in the array
+	 * @param length is size of the frame
+	 * @return number of bytes written including frame header
+	 * @throws IOException if the DataStream is not available
+	 */
+	private int writeFrame(byte[] data, int offset, int length) throws IOException {
+		int compressed = compressor == null ? -1 : compressor.compress(data, offset, length);
+		if (compressed < 0) {
+			output.writeInt(length);
+			output.write(data, offset, length);
+			return length + 4;
+		}
+		output.writeInt(compressed | 0x80000000);
+		output.writeInt(length);
+		output.write(compressor.getCompressed(), 0, compressed);
+		return compressed + 8;
 	}
 
 	/**
@@ -65,16 +213,37 @@ public class Session {
 	 * @throws IOException if the DataStream is not available
 	 */
 	public String read() throws IOException {
+			boolean sampled = recorder != null && recorder.isSampling();
+			long start = sampled ? System.nanoTime() : 0;
 			int length = input.readInt();  
+			long received = sampled ? System.nanoTime() : 0;
 			byte[] message = null;
 			String data;
-			if(length>0) {
+			if(length<0) {
+				// Compressed frame
+				int originalLength = input.readInt();
+				length &= 0x7FFFFFFF;
+				FrameCompressor.checkLengths(length, originalLength);
+				message = new byte[length];
+				input.readFully(message, 0, message.length);
+				if (decompressor == null) {
+					decompressor = new FrameCompressor();
+				}
+				data = new String(decompressor.decompress(message, length, originalLength), "UTF-8");
+			} else if(length>0) {
 				message = new byte[length];
 				input.readFully(message, 0, message.length); // read the message
 				data = new String(message, "UTF-8");
 			} else {
 				data = "";
 			}
+			long decoded = sampled ? System.nanoTime() : 0;
+
+			// Events are emitted after all phases are measured, so their cost is not measured
+			if (sampled) {
+				recorder.phase(Phase.SERVER_WAIT, start, received, 4);
+				recorder.phase(Phase.DECODE, received, decoded, length);
+			}
 			return data;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,366 @@
+package client;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import journal.DeliveryJournal;
+import journal.DeliveryLedger;
+import profiler.TransactionProfiler;
+import suppression.SuppressionIndex;
+
+/**
+ * Manages lifecycle of the connections to the SMTP Server.
+ * Connections are opened and greeted with HELO before the first
+ * message, so the first deliveries do not wait for the connection.
+ * Shutdown stops accepting new deliveries, waits for deliveries in
+ * progress until the deadline and sends QUIT to every connection.
+ *
+ * @author Martin Holecek
+ *
+ */
+public class SessionLifecycle {
+
+	/**
+	 * Delivery which runs on one connection
+	 */
+	public interface Delivery {
+		/**
+		 * @param process sends commands over the connection
+		 * @throws IOException if socket or data streams are unavailable
+		 */
+		void deliver(DataProcessing process) throws IOException;
+	}
+
+	/**
+	 * Session and its command processing
+	 */
+	private static class Connection {
+		final Session session;
+		final DataProcessing process;
+
+		Connection(Session session, DataProcessing process) {
+			this.session = session;
+			this.process = process;
+		}
+	}
+
+	private final Client client;
+	private final String domain;
+	private final int size;
+	private final Logger logger;
+	private final Deque<Connection> idle = new ArrayDeque<>();
+	private final Set<Connection> busy = new HashSet<>();
+	private SuppressionIndex suppression;
+	private DeliveryJournal journal;
+	private DeliveryLedger ledger;
+	private TransactionProfiler profiler;
+	private int compressionThreshold = -1;
+	private int open;
+	private boolean accepting = true;
+	private boolean terminated;
+
+	/**
+	 * Constructor
+	 *
+	 * @param client opens connections to the SMTP Server
+	 * @param domain is domain name sent with HELO Command
+	 * @param size is number of connections
+	 * @param logger is used to log any errors to the file or console
+	 */
+	public SessionLifecycle(Client client, String domain, int size, Logger logger) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Number of connections must be positive");
+		}
+		this.client = client;
+		this.domain = domain;
+		this.size = size;
+		this.logger = logger;
+	}
+
+	/**
+	 * Set suppression index used by all connections
+	 *
+	 * @param suppression is suppression index or null
+	 */
+	public void setSuppressionIndex(SuppressionIndex suppression) {
+		this.suppression = suppression;
+	}
+
+	/**
+	 * Set delivery journal used by all connections
+	 *
+	 * @param journal is delivery journal or null
+	 */
+	public void setDeliveryJournal(DeliveryJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Set delivery ledger used by all connections
+	 *
+	 * @param ledger is delivery ledger or null
+	 */
+	public void setDeliveryLedger(DeliveryLedger ledger) {
+		this.ledger = ledger;
+	}
+
+	/**
+	 * Set profiler used by all connections
+	 *
+	 * @param profiler is transaction profiler or null
+	 */
+	public void setProfiler(TransactionProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Negotiate compression of the frames on all connections
+	 *
+	 * @param threshold is minimal size of the compressed frame, negative to disable compression
+	 */
+	public void setCompressionThreshold(int threshold) {
+		this.compressionThreshold = threshold;
+	}
+
+	/**
+	 * Open all connections in parallel and send HELO Command
+	 *
+	 * @throws IOException if any connection can not be established
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void start() throws IOException, InterruptedException {
+		ExecutorService warmers = Executors.newFixedThreadPool(size);
+		try {
+			List<Future<Connection>> opening = new ArrayList<>();
+			for (int i = 0; i < size; i++) {
+				opening.add(warmers.submit(this::connect));
+			}
+
+			IOException failure = null;
+			for (Future<Connection> future : opening) {
+				try {
+					Connection connection = future.get();
+					synchronized (this) {
+						open++;
+						idle.add(connection);
+					}
+				} catch (ExecutionException e) {
+					failure = e.getCause() instanceof IOException
+							? (IOException)e.getCause() : new IOException(e.getCause());
+				}
+			}
+			if (failure != null) {
+				shutdown(0);
+				throw failure;
+			}
+		} finally {
+			warmers.shutdown();
+		}
+	}
+
+	/**
+	 * Run delivery on the idle connection. Caller waits when all
+	 * connections are busy. Broken connection is closed and a new
+	 * connection is opened for the next delivery.
+	 *
+	 * @param delivery sends commands over the connection
+	 * @throws IOException if socket or data streams are unavailable
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 * @throws IllegalStateException if the lifecycle is shutting down
+	 */
+	public void execute(Delivery delivery) throws IOException, InterruptedException {
+		Connection connection = acquire();
+		boolean healthy = false;
+		try {
+			delivery.deliver(connection.process);
+			healthy = true;
+		} finally {
+			release(connection, healthy);
+		}
+	}
+
+	/**
+	 * Stop accepting deliveries, wait for deliveries in progress and send
+	 * QUIT Command to every connection. Finished deliveries return their
+	 * connections to the idle queue, so QUIT is sent here before the method
+	 * returns. Connections which are still busy after the deadline are
+	 * closed without QUIT. Nothing is logged, the method is called from
+	 * the shutdown hook when the logging may be already closed.
+	 *
+	 * @param timeoutMillis is maximum time to wait for deliveries in progress
+	 * @return number of deliveries which did not finish before the deadline
+	 */
+	public int shutdown(long timeoutMillis) {
+		List<Connection> idleConnections;
+		List<Connection> busyConnections;
+		int unfinished;
+		synchronized (this) {
+			if (terminated) {
+				return 0;
+			}
+			accepting = false;
+			notifyAll();
+
+			// Wait for deliveries in progress and connections being opened
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			long remaining = timeoutMillis;
+			while (open > idle.size() && remaining > 0) {
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				remaining = deadline - System.currentTimeMillis();
+			}
+			terminated = true;
+			unfinished = open - idle.size();
+			idleConnections = new ArrayList<>(idle);
+			busyConnections = new ArrayList<>(busy);
+			idle.clear();
+			busy.clear();
+		}
+
+		for (Connection connection : idleConnections) {
+			quit(connection);
+		}
+		for (Connection connection : busyConnections) {
+			connection.session.close();
+		}
+		return unfinished;
+	}
+
+	/**
+	 * Take idle connection or open a new one when a connection was lost
+	 *
+	 * @return connection reserved for the caller
+	 * @throws IOException if a new connection can not be established
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	private Connection acquire() throws IOException, InterruptedException {
+		synchronized (this) {
+			while (idle.isEmpty()) {
+				if (!accepting) {
+					throw new IllegalStateException("Client is shutting down");
+				}
+				if (open < size) {
+					open++;
+					break;
+				}
+				wait();
+			}
+			if (!accepting) {
+				throw new IllegalStateException("Client is shutting down");
+			}
+			Connection connection = idle.poll();
+			if (connection != null) {
+				busy.add(connection);
+				return connection;
+			}
+		}
+
+		// Replace lost connection outside of the lock
+		Connection connection;
+		try {
+			connection = connect();
+		} catch (IOException e) {
+			synchronized (this) {
+				open--;
+				notifyAll();
+			}
+			throw e;
+		}
+		synchronized (this) {
+			if (accepting) {
+				busy.add(connection);
+				return connection;
+			}
+			if (!terminated) {
+				// Shutdown sends QUIT Command to the new connection
+				idle.add(connection);
+				notifyAll();
+				throw new IllegalStateException("Client is shutting down");
+			}
+			open--;
+		}
+		quit(connection);
+		throw new IllegalStateException("Client is shutting down");
+	}
+
+	/**
+	 * Return connection after delivery. During shutdown the connection
+	 * is returned to the idle queue too and shutdown sends QUIT Command.
+	 *
+	 * @param connection is connection used by the delivery
+	 * @param healthy false if the connection failed and must be closed
+	 */
+	private void release(Connection connection, boolean healthy) {
+		synchronized (this) {
+			// Connection was already closed by shutdown
+			if (terminated) {
+				return;
+			}
+			busy.remove(connection);
+			if (healthy) {
+				idle.add(connection);
+			} else {
+				connection.session.close();
+				open--;
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Open connection, check server greeting and send HELO Command
+	 *
+	 * @return connection ready for the mail transaction
+	 * @throws IOException if the server is not available or refused the client
+	 */
+	private Connection connect() throws IOException {
+		Session session = client.connect();
+		DataProcessing process = new DataProcessing(session, null);
+		process.setSuppressionIndex(suppression);
+		process.setDeliveryJournal(journal);
+		process.setDeliveryLedger(ledger);
+		process.setProfiler(profiler);
+
+		// Connection Establishment
+		String greeting = session.read();
+		if (!greeting.startsWith("2") || !process.sendHelo(domain)) {
+			session.close();
+			throw new IOException("Server refused connection: " + greeting);
+		}
+		if (compressionThreshold >= 0 && !process.negotiateCompression(compressionThreshold)) {
+			logger.log(Level.INFO, "Server does not support compression");
+		}
+		return new Connection(session, process);
+	}
+
+	/**
+	 * Send QUIT Command and close the connection
+	 *
+	 * @param connection is idle connection
+	 */
+	private void quit(Connection connection) {
+		try {
+			connection.session.write("QUIT");
+			connection.session.read();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "QUIT was not confirmed", e);
+		} finally {
+			connection.session.close();
+		}
+	}
+}
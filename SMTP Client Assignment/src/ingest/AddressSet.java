@@ -0,0 +1,94 @@
+package ingest;
+
+/**
+ * Compact hash set of the address fingerprints. Fingerprints are
+ * stored in a single long array with open addressing, so each
+ * address costs 16 bytes instead of a String and a HashMap entry.
+ * Two different addresses with the same 64-bits fingerprint are
+ * very unlikely (less than 1 in 300000 for 10 million addresses).
+ *
+ * @author Martin Holecek
+ *
+ */
+public class AddressSet {
+	private static final long EMPTY = 0L;
+
+	private long[] table;
+	private int size;
+
+	/**
+	 * Constructor
+	 *
+	 * @param expected is expected number of addresses
+	 */
+	public AddressSet(int expected) {
+		int capacity = 16;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		table = new long[capacity];
+		size = 0;
+	}
+
+	/**
+	 * Add address to the set
+	 *
+	 * @param address is normalized address
+	 * @return true if address was not in the set
+	 */
+	public boolean add(String address) {
+		return add(Fingerprint.of(address));
+	}
+
+	/**
+	 * Add fingerprint to the set
+	 *
+	 * @param fingerprint is fingerprint of the address
+	 * @return true if fingerprint was not in the set
+	 */
+	public boolean add(long fingerprint) {
+		// Zero marks empty slot
+		if (fingerprint == EMPTY) {
+			fingerprint = 1L;
+		}
+		if ((size + 1) * 2 > table.length) {
+			grow();
+		}
+		int mask = table.length - 1;
+		int index = (int)fingerprint & mask;
+		while (table[index] != EMPTY) {
+			if (table[index] == fingerprint) {
+				return false;
+			}
+			index = (index + 1) & mask;
+		}
+		table[index] = fingerprint;
+		size++;
+		return true;
+	}
+
+	/**
+	 * @return number of addresses in the set
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Double the table and insert all fingerprints again
+	 */
+	private void grow() {
+		long[] old = table;
+		table = new long[old.length * 2];
+		int mask = table.length - 1;
+		for (long fingerprint : old) {
+			if (fingerprint != EMPTY) {
+				int index = (int)fingerprint & mask;
+				while (table[index] != EMPTY) {
+					index = (index + 1) & mask;
+				}
+				table[index] = fingerprint;
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package ingest;
+
+import java.util.Locale;
+
+/**
+ * Validate and normalize recipient addresses before they are
+ * sent to the SMTP Server. Only addresses which the server
+ * could accept are returned, so obviously bad input never
+ * reaches the network.
+ *
+ * @author Martin Holecek
+ *
+ */
+public class AddressValidator {
+	private static final int MAX_LOCAL = 64;
+	private static final int MAX_DOMAIN = 253;
+	private static final int MAX_LABEL = 63;
+	private static final int MAX_ADDRESS = 254;
+	private static final String LOCAL_SYMBOLS = "!#$%&'*+-/=?^_`{|}~";
+
+	/**
+	 * Normalize address. Surrounding white space and angle brackets are
+	 * removed and domain is converted to lower case. Local part is case
+	 * sensitive, so it is not changed.
+	 *
+	 * @param raw is address from the manifest or user input
+	 * @return normalized address, or null if address is not valid
+	 */
+	public static String normalize(String raw) {
+		if (raw == null) {
+			return null;
+		}
+		String address = raw.trim();
+		if (address.length() > 1 && address.charAt(0) == '<'
+				&& address.charAt(address.length() - 1) == '>') {
+			address = address.substring(1, address.length() - 1).trim();
+		}
+		if (address.isEmpty() || address.length() > MAX_ADDRESS) {
+			return null;
+		}
+
+		// Address must contain exactly one @ symbol
+		int at = address.indexOf('@');
+		if (at <= 0 || at != address.lastIndexOf('@') || at == address.length() - 1) {
+			return null;
+		}
+
+		String local = address.substring(0, at);
+		String domain = address.substring(at + 1).toLowerCase(Locale.ROOT);
+		if (!isValidLocal(local) || !isValidDomain(domain)) {
+			return null;
+		}
+		return local + "@" + domain;
+	}
+
+	/**
+	 * Check local part of the address (dot-atom)
+	 *
+	 * @param local is part of the address before @ symbol
+	 * @return true if local part is valid
+	 */
+	private static boolean isValidLocal(String local) {
+		if (local.length() > MAX_LOCAL || local.startsWith(".")
+				|| local.endsWith(".") || local.contains("..")) {
+			return false;
+		}
+		for (int i = 0; i < local.length(); i++) {
+			char ch = local.charAt(i);
+			if (!isAlphaNumeric(ch) && ch != '.' && LOCAL_SYMBOLS.indexOf(ch) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check domain of the address. Domain without dot is allowed
+	 * because local test servers use names like "localhost".
+	 *
+	 * @param domain is lower case part of the address after @ symbol
+	 * @return true if domain is valid
+	 */
+	private static boolean isValidDomain(String domain) {
+		if (domain.length() > MAX_DOMAIN) {
+			return false;
+		}
+		int labelStart = 0;
+		for (int i = 0; i <= domain.length(); i++) {
+			if (i == domain.length() || domain.charAt(i) == '.') {
+				// Label must not be empty, too long or start or end with hyphen
+				int size = i - labelStart;
+				if (size == 0 || size > MAX_LABEL || domain.charAt(labelStart) == '-'
+						|| domain.charAt(i - 1) == '-') {
+					return false;
+				}
+				labelStart = i + 1;
+			} else {
+				char ch = domain.charAt(i);
+				if (!isAlphaNumeric(ch) && ch != '-') {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param ch is a character
+	 * @return true if character is 7-bits ASCII letter or digit
+	 */
+	private static boolean isAlphaNumeric(char ch) {
+		return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9');
+	}
+
+	/**
+	 * @param address is normalized address
+	 * @return domain of the address
+	 */
+	public static String getDomain(String address) {
+		return address.substring(address.indexOf('@') + 1);
+	}
+}
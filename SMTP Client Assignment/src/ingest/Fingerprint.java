@@ -0,0 +1,54 @@
+package ingest;
+
+/**
+ * 64-bits fingerprint of the text. Fingerprints are used instead of
+ * strings when large number of addresses must be kept in the memory.
+ *
+ * @author Martin Holecek
+ *
+ */
+public class Fingerprint {
+
+	/**
+	 * Calculate fingerprint of the text (FNV-1a with final bit mixing)
+	 *
+	 * @param text is a string text
+	 * @return 64-bits fingerprint of the text
+	 */
+	public static long of(CharSequence text) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < text.length(); i++) {
+			hash ^= text.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * Calculate fingerprint of two texts, for example message ID
+	 * and recipient. Separator is included so "ab" + "c" and
+	 * "a" + "bc" have different fingerprints.
+	 *
+	 * @param first is first string text
+	 * @param second is second string text
+	 * @return 64-bits fingerprint of both texts
+	 */
+	public static long of(CharSequence first, CharSequence second) {
+		return mix(of(first) * 31 + of(second));
+	}
+
+	/**
+	 * Spread bits of the hash so low bits can be used as table index
+	 *
+	 * @param hash is 64-bits hash
+	 * @return mixed hash
+	 */
+	public static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
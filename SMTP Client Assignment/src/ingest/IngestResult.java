@@ -0,0 +1,62 @@
+package ingest;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of the manifest ingestion. Contains recipient batches
+ * ready for delivery and counters of the skipped addresses.
+ *
+ * @author Martin Holecek
+ *
+ */
+public class IngestResult {
+	private final List<RecipientBatch> batches;
+	private final int accepted;
+	private final int rejected;
+	private final int duplicates;
+
+	/**
+	 * Constructor
+	 *
+	 * @param batches is recipients grouped by domain
+	 * @param accepted is number of valid unique addresses
+	 * @param rejected is number of invalid addresses
+	 * @param duplicates is number of repeated addresses
+	 */
+	IngestResult(List<RecipientBatch> batches, int accepted, int rejected, int duplicates) {
+		this.batches = batches;
+		this.accepted = accepted;
+		this.rejected = rejected;
+		this.duplicates = duplicates;
+	}
+
+	/**
+	 * @return recipients grouped by domain into mail transactions,
+	 * empty when the batches were handed to the batch handler
+	 */
+	public List<RecipientBatch> getBatches() {
+		return Collections.unmodifiableList(batches);
+	}
+
+	/**
+	 * @return number of valid unique addresses
+	 */
+	public int getAccepted() {
+		return accepted;
+	}
+
+	/**
+	 * @return number of invalid addresses
+	 */
+	public int getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * @return number of repeated addresses
+	 */
+	public int getDuplicates() {
+		return duplicates;
+	}
+}
@@ -0,0 +1,259 @@
+package ingest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reads recipient manifest for delivery. Manifest is read in chunks,
+ * each chunk is validated in parallel while the next chunk is read,
+ * then addresses are deduplicated and grouped by domain into batches.
+ * Full batches are handed to the sender as soon as they are ready,
+ * so delivery starts before the whole manifest is read and only
+ * partly filled batches are kept in memory.
+ *
+ * Manifest contains one recipient per line. The first comma separated
+ * column is the address, the following columns are kept only when
+ * {@link #setColumnCount(int)} is set (for example values of the template
+ * fields). Blank lines and lines starting with # are ignored.
+ *
+ * @author Martin Holecek
+ *
+ */
+public class ManifestIngester {
+	/** Number of lines read before validation starts */
+	public static final int DEFAULT_CHUNK_SIZE = 8192;
+	/** The SMTP Server accepts at most 100 recipients per transaction */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	private static final int SPLIT_THRESHOLD = 512;
+
+	private final ForkJoinPool pool;
+	private final int chunkSize;
+	private final int batchSize;
+	private int columnCount;
+
+	/**
+	 * Receives batches ready for delivery
+	 */
+	public interface BatchHandler {
+		/**
+		 * @param batch is recipients of one mail transaction
+		 * @throws InterruptedException if the thread is interrupted while waiting for the sender
+		 */
+		void handle(RecipientBatch batch) throws InterruptedException;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param pool is fork join pool used for validation
+	 * @param chunkSize is number of lines validated together
+	 * @param batchSize is maximum number of recipients in one transaction
+	 */
+	public ManifestIngester(ForkJoinPool pool, int chunkSize, int batchSize) {
+		if (chunkSize < 1 || batchSize < 1) {
+			throw new IllegalArgumentException("Chunk and batch size must be positive");
+		}
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Constructor with common pool and default sizes
+	 */
+	public ManifestIngester() {
+		this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Keep the columns after the address with each recipient. Values are
+	 * trimmed, line with fewer columns is rejected and extra columns are
+	 * ignored.
+	 *
+	 * @param columnCount is number of kept columns, 0 to keep only the address
+	 */
+	public void setColumnCount(int columnCount) {
+		if (columnCount < 0) {
+			throw new IllegalArgumentException("Column count must not be negative");
+		}
+		this.columnCount = columnCount;
+	}
+
+	/**
+	 * Read, validate, deduplicate and group all recipients of the manifest
+	 *
+	 * @param manifest is source of the recipients
+	 * @return recipient batches and counters of skipped addresses
+	 * @throws IOException if the manifest can not be read
+	 */
+	public IngestResult ingest(Reader manifest) throws IOException {
+		List<RecipientBatch> batches = new ArrayList<>();
+		try {
+			IngestResult result = ingest(manifest, batches::add);
+			return new IngestResult(batches, result.getAccepted(), result.getRejected(), result.getDuplicates());
+		} catch (InterruptedException e) {
+			// Adding to the list never waits
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Read, validate, deduplicate and group recipients of the manifest.
+	 * Each full batch is handed over while the manifest is read, partly
+	 * filled batches are handed over at the end of the manifest.
+	 *
+	 * @param manifest is source of the recipients
+	 * @param handler receives batches ready for delivery
+	 * @return counters of the addresses, batches are not included
+	 * @throws IOException if the manifest can not be read
+	 * @throws InterruptedException if the thread is interrupted while the handler waits
+	 */
+	public IngestResult ingest(Reader manifest, BatchHandler handler) throws IOException, InterruptedException {
+		BufferedReader reader = manifest instanceof BufferedReader
+				? (BufferedReader)manifest : new BufferedReader(manifest);
+
+		String[] current = new String[chunkSize];
+		String[] next = new String[chunkSize];
+		String[][] currentColumns = columnCount == 0 ? null : new String[chunkSize][];
+		String[][] nextColumns = columnCount == 0 ? null : new String[chunkSize][];
+		AddressSet seen = new AddressSet(chunkSize);
+		Map<String, RecipientBatch> open = new LinkedHashMap<>();
+		int rejected = 0;
+		int duplicates = 0;
+
+		int count = readChunk(reader, current, currentColumns);
+		while (count > 0) {
+			// Validate current chunk while next chunk is read
+			ForkJoinTask<Void> validation = pool.submit(new ValidateTask(current, 0, count));
+			int nextCount = readChunk(reader, next, nextColumns);
+			validation.join();
+
+			for (int i = 0; i < count; i++) {
+				String address = current[i];
+				String[] values = null;
+				current[i] = null;
+				if (currentColumns != null) {
+					values = currentColumns[i];
+					currentColumns[i] = null;
+				}
+				if (address == null) {
+					rejected++;
+				} else if (!seen.add(address)) {
+					duplicates++;
+				} else {
+					String domain = AddressValidator.getDomain(address);
+					RecipientBatch batch = open.get(domain);
+					if (batch == null) {
+						batch = new RecipientBatch(domain, batchSize);
+						open.put(domain, batch);
+					}
+					batch.add(address, values);
+
+					// Full batch is ready for delivery
+					if (batch.size() == batchSize) {
+						open.remove(domain);
+						handler.handle(batch);
+					}
+				}
+			}
+
+			String[] swap = current;
+			current = next;
+			next = swap;
+			String[][] swapColumns = currentColumns;
+			currentColumns = nextColumns;
+			nextColumns = swapColumns;
+			count = nextCount;
+		}
+
+		for (RecipientBatch batch : open.values()) {
+			handler.handle(batch);
+		}
+		return new IngestResult(Collections.<RecipientBatch>emptyList(), seen.size(), rejected, duplicates);
+	}
+
+	/**
+	 * Read next chunk of the recipients
+	 *
+	 * @param reader is manifest reader
+	 * @param chunk is array filled with raw addresses
+	 * @param columns is array filled with the kept columns, or null when they are not kept
+	 * @return number of addresses in the chunk, 0 at the end of the manifest
+	 * @throws IOException if the manifest can not be read
+	 */
+	private int readChunk(BufferedReader reader, String[] chunk, String[][] columns) throws IOException {
+		int count = 0;
+		String line;
+		while (count < chunk.length && (line = reader.readLine()) != null) {
+			int comma = line.indexOf(',');
+			String address = (comma < 0 ? line : line.substring(0, comma)).trim();
+			if (!address.isEmpty() && !address.startsWith("#")) {
+				if (columns != null && (columns[count] = readColumns(line, comma)) == null) {
+					// Line with missing column is counted as invalid address
+					address = null;
+				}
+				chunk[count++] = address;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Split the columns after the address
+	 *
+	 * @param line is manifest line
+	 * @param comma is position of the comma after the address, or -1
+	 * @return trimmed values of the kept columns, or null when the line has fewer columns
+	 */
+	private String[] readColumns(String line, int comma) {
+		String[] values = new String[columnCount];
+		for (int column = 0; column < columnCount; column++) {
+			if (comma < 0) {
+				return null;
+			}
+			int end = line.indexOf(',', comma + 1);
+			values[column] = (end < 0 ? line.substring(comma + 1) : line.substring(comma + 1, end)).trim();
+			comma = end;
+		}
+		return values;
+	}
+
+	/**
+	 * Fork join task which replaces raw addresses with normalized
+	 * addresses, or with null when the address is not valid
+	 */
+	private static class ValidateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final String[] addresses;
+		private final int from;
+		private final int to;
+
+		ValidateTask(String[] addresses, int from, int to) {
+			this.addresses = addresses;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= SPLIT_THRESHOLD) {
+				for (int i = from; i < to; i++) {
+					addresses[i] = AddressValidator.normalize(addresses[i]);
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ValidateTask(addresses, from, middle),
+						new ValidateTask(addresses, middle, to));
+			}
+		}
+	}
+}
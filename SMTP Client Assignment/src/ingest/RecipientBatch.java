@@ -0,0 +1,76 @@
+package ingest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Recipients of the same domain which are sent in one
+ * mail transaction (one MAIL FROM, many RCPT TO and one DATA)
+ *
+ * @author Martin Holecek
+ *
+ */
+public class RecipientBatch {
+	private final String domain;
+	private final List<String> recipients;
+	private List<String[]> columns;
+
+	/**
+	 * Constructor
+	 *
+	 * @param domain is domain of all recipients in the batch
+	 * @param capacity is maximum number of recipients
+	 */
+	RecipientBatch(String domain, int capacity) {
+		this.domain = domain;
+		this.recipients = new ArrayList<>(capacity);
+	}
+
+	/**
+	 * @param address is normalized address
+	 * @param values is manifest columns after the address, or null when they are not kept
+	 */
+	void add(String address, String[] values) {
+		if (values != null && columns == null) {
+			columns = new ArrayList<>(recipients.size() + 1);
+			for (int i = 0; i < recipients.size(); i++) {
+				columns.add(new String[0]);
+			}
+		}
+		recipients.add(address);
+		if (columns != null) {
+			columns.add(values == null ? new String[0] : values);
+		}
+	}
+
+	/**
+	 * @return domain of all recipients in the batch
+	 */
+	public String getDomain() {
+		return domain;
+	}
+
+	/**
+	 * @return normalized addresses of the recipients
+	 */
+	public List<String> getRecipients() {
+		return Collections.unmodifiableList(recipients);
+	}
+
+	/**
+	 * @param index is position of the recipient in the batch
+	 * @return manifest columns after the address of the recipient,
+	 * empty when the columns were not kept
+	 */
+	public String[] getColumns(int index) {
+		return columns == null ? new String[0] : columns.get(index).clone();
+	}
+
+	/**
+	 * @return number of recipients in the batch
+	 */
+	public int size() {
+		return recipients.size();
+	}
+}
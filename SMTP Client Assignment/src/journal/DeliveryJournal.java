@@ -0,0 +1,572 @@
+package journal;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import ascii.ConvertToASCII;
+import ingest.Fingerprint;
+
+/**
+ * Append only journal of the delivery outcomes. Each record is stored
+ * in a compact binary format (17 bytes and the ASCII text of the message
+ * ID and recipient). Index of the records by message ID and by recipient
+ * is kept in primitive arrays and built by the first lookup, so opening
+ * the journal for appending does not read the existing records. Header
+ * holds end of the records written by the last flush.
+ *
+ * Header format: magic (int), version (int), end of the records (long).
+ *
+ * Record format: start time (long), duration in microseconds (int),
+ * reply code (short), attempts (byte), length of the message ID (byte),
+ * length of the recipient (byte), message ID and recipient.
+ *
+ * @author Martin Holecek
+ *
+ */
+public class DeliveryJournal implements Closeable {
+	private static final int MAGIC = 0x444A4E4C;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 16;
+	private static final int OLD_VERSION = 1;
+	private static final int OLD_HEADER_SIZE = 8;
+	private static final int FIXED_SIZE = 17;
+	private static final int MAX_TEXT = 255;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final String CSV_HEADER = "message_id,recipient,reply_code,attempts,start_time,duration_micros";
+
+	private final Path file;
+	private final FileChannel channel;
+	private final ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(FIXED_SIZE + 2 * MAX_TEXT);
+	private final ByteBuffer endBuffer = ByteBuffer.allocate(8);
+	private int version;
+	private long firstRecord;
+	private long writePosition;
+
+	// Index of the records, chains are linked from the newest record
+	private boolean indexed;
+	private int count;
+	private long[] offsets = new long[1024];
+	private int[] idHashes = new int[1024];
+	private int[] recipientHashes = new int[1024];
+	private int[] idNext = new int[1024];
+	private int[] recipientNext = new int[1024];
+	private int[] idHeads = emptyHeads(1024);
+	private int[] recipientHeads = emptyHeads(1024);
+
+	/**
+	 * Constructor
+	 *
+	 * @param file is journal file
+	 * @param channel is open channel of the journal file
+	 */
+	private DeliveryJournal(Path file, FileChannel channel) {
+		this.file = file;
+		this.channel = channel;
+	}
+
+	/**
+	 * Open journal file or create a new one. Only records written after
+	 * the last flush are checked, incomplete record at the end of the
+	 * file (for example after crash) is removed.
+	 *
+	 * @param file is journal file
+	 * @return open journal
+	 * @throws IOException if the file can not be opened or is not delivery journal
+	 */
+	public static DeliveryJournal open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		DeliveryJournal journal = new DeliveryJournal(file, channel);
+		try {
+			journal.load();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return journal;
+	}
+
+	/**
+	 * Write header to the new file or find end of the existing records
+	 *
+	 * @throws IOException if the file is not delivery journal
+	 */
+	private void load() throws IOException {
+		if (channel.size() == 0) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putLong(HEADER_SIZE).flip();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			version = VERSION;
+			firstRecord = HEADER_SIZE;
+			writePosition = HEADER_SIZE;
+			indexed = true;
+			return;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+			// Read until the header is complete or the file ends
+		}
+		header.flip();
+		if (header.remaining() < OLD_HEADER_SIZE || header.getInt() != MAGIC) {
+			throw new IOException("File is not delivery journal");
+		}
+		version = header.getInt();
+		long end;
+		if (version == VERSION && header.remaining() == 8) {
+			firstRecord = HEADER_SIZE;
+			end = header.getLong();
+			// Damaged end is ignored and all records are checked
+			if (end < HEADER_SIZE || end > channel.size()) {
+				end = HEADER_SIZE;
+			}
+		} else if (version == OLD_VERSION) {
+			firstRecord = OLD_HEADER_SIZE;
+			end = OLD_HEADER_SIZE;
+		} else {
+			throw new IOException("File is not delivery journal");
+		}
+
+		// Records after the end were written, but the header was not updated
+		try (DataInputStream input = openRecords(file, end)) {
+			long position = end;
+			DeliveryRecord record;
+			while ((record = readRecord(input)) != null) {
+				position += FIXED_SIZE + record.getMessageId().length() + record.getRecipient().length();
+			}
+			writePosition = position;
+		}
+
+		// Remove incomplete record
+		if (channel.size() > writePosition) {
+			channel.truncate(writePosition);
+		}
+	}
+
+	/**
+	 * Append delivery outcome to the journal. Records are buffered,
+	 * call {@link #flush()} to write them to the file. Message ID and
+	 * recipient longer than 255 characters are truncated, the outcome
+	 * is recorded after the server already replied and must not fail.
+	 *
+	 * @param record is delivery outcome
+	 * @throws IOException if the file is not available
+	 */
+	public synchronized void append(DeliveryRecord record) throws IOException {
+		byte[] id = toText(record.getMessageId());
+		byte[] recipient = toText(record.getRecipient());
+
+		int size = FIXED_SIZE + id.length + recipient.length;
+		if (writeBuffer.remaining() < size) {
+			flushBuffer();
+		}
+		long offset = writePosition + writeBuffer.position();
+
+		writeBuffer.putLong(record.getStartTime());
+		writeBuffer.putInt((int)Math.min(Integer.MAX_VALUE, Math.max(0, record.getDurationMicros())));
+		writeBuffer.putShort((short)record.getReplyCode());
+		writeBuffer.put((byte)Math.min(MAX_TEXT, Math.max(0, record.getAttempts())));
+		writeBuffer.put((byte)id.length);
+		writeBuffer.put((byte)recipient.length);
+		writeBuffer.put(id);
+		writeBuffer.put(recipient);
+
+		// Index the stored text, so the index is the same after reopen
+		if (indexed) {
+			index(offset, new String(id, StandardCharsets.US_ASCII), new String(recipient, StandardCharsets.US_ASCII));
+		}
+	}
+
+	/**
+	 * Convert text to ASCII and truncate it to the maximum length
+	 *
+	 * @param text is message ID or recipient
+	 * @return at most 255 ASCII bytes
+	 */
+	private static byte[] toText(String text) {
+		if (text.length() > MAX_TEXT) {
+			text = text.substring(0, MAX_TEXT);
+		}
+		return ConvertToASCII.getAsciiBytes(text);
+	}
+
+	/**
+	 * Find all deliveries of the message
+	 *
+	 * @param messageId is identifier of the message
+	 * @return records in order of the delivery
+	 * @throws IOException if the file is not available
+	 */
+	public synchronized List<DeliveryRecord> findByMessageId(String messageId) throws IOException {
+		buildIndex();
+		flushBuffer();
+		List<DeliveryRecord> found = new ArrayList<>();
+		int hash = hash(messageId);
+		for (int entry = idHeads[hash & (idHeads.length - 1)]; entry >= 0; entry = idNext[entry]) {
+			if (idHashes[entry] == hash) {
+				DeliveryRecord record = readAt(offsets[entry]);
+				if (record.getMessageId().equals(messageId)) {
+					found.add(record);
+				}
+			}
+		}
+		Collections.reverse(found);
+		return found;
+	}
+
+	/**
+	 * Find all deliveries to the recipient
+	 *
+	 * @param recipient is address of the recipient
+	 * @return records in order of the delivery
+	 * @throws IOException if the file is not available
+	 */
+	public synchronized List<DeliveryRecord> findByRecipient(String recipient) throws IOException {
+		buildIndex();
+		flushBuffer();
+		List<DeliveryRecord> found = new ArrayList<>();
+		int hash = hash(recipient);
+		for (int entry = recipientHeads[hash & (recipientHeads.length - 1)]; entry >= 0; entry = recipientNext[entry]) {
+			if (recipientHashes[entry] == hash) {
+				DeliveryRecord record = readAt(offsets[entry]);
+				if (record.getRecipient().equals(recipient)) {
+					found.add(record);
+				}
+			}
+		}
+		Collections.reverse(found);
+		return found;
+	}
+
+	/**
+	 * @return number of records in the journal
+	 * @throws IOException if the file is not available
+	 */
+	public synchronized int size() throws IOException {
+		buildIndex();
+		return count;
+	}
+
+	/**
+	 * Write all records of the journal as CSV
+	 *
+	 * @param output is destination of the CSV text
+	 * @throws IOException if the file or the output is not available
+	 */
+	public synchronized void exportCsv(Writer output) throws IOException {
+		flushBuffer();
+		exportCsv(file, output);
+	}
+
+	/**
+	 * Write all records of the journal file as CSV. Records are streamed,
+	 * so the journal of any size can be exported.
+	 *
+	 * @param file is journal file
+	 * @param output is destination of the CSV text
+	 * @throws IOException if the file or the output is not available
+	 */
+	public static void exportCsv(Path file, Writer output) throws IOException {
+		try (DataInputStream input = openRecords(file)) {
+			output.write(CSV_HEADER);
+			output.write("\r\n");
+			DeliveryRecord record;
+			while ((record = readRecord(input)) != null) {
+				output.write(csv(record.getMessageId()));
+				output.write(',');
+				output.write(csv(record.getRecipient()));
+				output.write(',');
+				output.write(Integer.toString(record.getReplyCode()));
+				output.write(',');
+				output.write(Integer.toString(record.getAttempts()));
+				output.write(',');
+				output.write(Instant.ofEpochMilli(record.getStartTime()).toString());
+				output.write(',');
+				output.write(Long.toString(record.getDurationMicros()));
+				output.write("\r\n");
+			}
+		}
+		output.flush();
+	}
+
+	/**
+	 * Write buffered records to the file
+	 *
+	 * @throws IOException if the file is not available
+	 */
+	public synchronized void flush() throws IOException {
+		flushBuffer();
+	}
+
+	/**
+	 * Write buffered records, force them to the disk and close the file
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			flushBuffer();
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Write content of the buffer at the end of the file
+	 *
+	 * @throws IOException if the file is not available
+	 */
+	private void flushBuffer() throws IOException {
+		if (writeBuffer.position() == 0) {
+			return;
+		}
+		writeBuffer.flip();
+		while (writeBuffer.hasRemaining()) {
+			writePosition += channel.write(writeBuffer, writePosition);
+		}
+		writeBuffer.clear();
+
+		// Old header has no place for the end, its records are always checked
+		if (version == VERSION) {
+			endBuffer.clear();
+			endBuffer.putLong(writePosition).flip();
+			while (endBuffer.hasRemaining()) {
+				channel.write(endBuffer, OLD_HEADER_SIZE + endBuffer.position());
+			}
+		}
+	}
+
+	/**
+	 * Build index of the records when it is needed for the first time
+	 *
+	 * @throws IOException if the file is not available
+	 */
+	private void buildIndex() throws IOException {
+		if (indexed) {
+			return;
+		}
+		flushBuffer();
+		try (DataInputStream input = openRecords(file, firstRecord)) {
+			long position = firstRecord;
+			DeliveryRecord record;
+			while (position < writePosition && (record = readRecord(input)) != null) {
+				index(position, record.getMessageId(), record.getRecipient());
+				position += FIXED_SIZE + record.getMessageId().length() + record.getRecipient().length();
+			}
+		}
+		indexed = true;
+	}
+
+	/**
+	 * Read one record from the file
+	 *
+	 * @param offset is position of the record in the file
+	 * @return record
+	 * @throws IOException if the file is not available or record is incomplete
+	 */
+	private DeliveryRecord readAt(long offset) throws IOException {
+		readBuffer.clear();
+		while (readBuffer.position() < FIXED_SIZE) {
+			if (channel.read(readBuffer, offset + readBuffer.position()) < 0) {
+				throw new EOFException("Incomplete record at position " + offset);
+			}
+		}
+		int size = FIXED_SIZE + (readBuffer.get(15) & 0xFF) + (readBuffer.get(16) & 0xFF);
+		readBuffer.limit(size);
+		while (readBuffer.hasRemaining()) {
+			if (channel.read(readBuffer, offset + readBuffer.position()) < 0) {
+				throw new EOFException("Incomplete record at position " + offset);
+			}
+		}
+		readBuffer.flip();
+		return decode(readBuffer.getLong(), readBuffer.getInt(), readBuffer.getShort(), readBuffer.get(),
+				readBuffer.get(), readBuffer.get(), readBuffer.array(), FIXED_SIZE);
+	}
+
+	/**
+	 * Open journal file for sequential reading and skip the header
+	 *
+	 * @param file is journal file
+	 * @return stream positioned at the first record
+	 * @throws IOException if the file is not delivery journal
+	 */
+	private static DataInputStream openRecords(Path file) throws IOException {
+		InputStream stream = Files.newInputStream(file);
+		DataInputStream input = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+		try {
+			if (input.readInt() != MAGIC) {
+				throw new IOException("File is not delivery journal");
+			}
+			int version = input.readInt();
+			if (version == VERSION) {
+				input.readLong();
+			} else if (version != OLD_VERSION) {
+				throw new IOException("File is not delivery journal");
+			}
+		} catch (IOException e) {
+			input.close();
+			throw e instanceof EOFException ? new IOException("File is not delivery journal", e) : e;
+		}
+		return input;
+	}
+
+	/**
+	 * Open journal file for sequential reading from the given position
+	 *
+	 * @param file is journal file
+	 * @param position is position of the first read record
+	 * @return stream positioned at the record
+	 * @throws IOException if the file can not be opened
+	 */
+	private static DataInputStream openRecords(Path file, long position) throws IOException {
+		FileChannel records = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			records.position(position);
+		} catch (IOException e) {
+			records.close();
+			throw e;
+		}
+		return new DataInputStream(new BufferedInputStream(Channels.newInputStream(records), BUFFER_SIZE));
+	}
+
+	/**
+	 * Read next record from the stream
+	 *
+	 * @param input is stream of the records
+	 * @return record or null at the end of the journal or at incomplete record
+	 * @throws IOException if the file is not available
+	 */
+	private static DeliveryRecord readRecord(DataInputStream input) throws IOException {
+		byte[] fixed = new byte[FIXED_SIZE];
+		try {
+			input.readFully(fixed);
+			ByteBuffer header = ByteBuffer.wrap(fixed);
+			long startTime = header.getLong();
+			int duration = header.getInt();
+			short replyCode = header.getShort();
+			byte attempts = header.get();
+			byte idLength = header.get();
+			byte recipientLength = header.get();
+			byte[] text = new byte[(idLength & 0xFF) + (recipientLength & 0xFF)];
+			input.readFully(text);
+			return decode(startTime, duration, replyCode, attempts, idLength, recipientLength, text, 0);
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Create record from the stored fields
+	 */
+	private static DeliveryRecord decode(long startTime, int duration, short replyCode, byte attempts,
+			byte idLength, byte recipientLength, byte[] text, int textStart) {
+		int id = idLength & 0xFF;
+		int recipient = recipientLength & 0xFF;
+		return new DeliveryRecord(new String(text, textStart, id, StandardCharsets.US_ASCII),
+				new String(text, textStart + id, recipient, StandardCharsets.US_ASCII),
+				replyCode, attempts & 0xFF, startTime, duration);
+	}
+
+	/**
+	 * Add record to the index
+	 *
+	 * @param offset is position of the record in the file
+	 * @param messageId is identifier of the message
+	 * @param recipient is address of the recipient
+	 */
+	private void index(long offset, String messageId, String recipient) {
+		if (count == offsets.length) {
+			int capacity = count * 2;
+			offsets = Arrays.copyOf(offsets, capacity);
+			idHashes = Arrays.copyOf(idHashes, capacity);
+			recipientHashes = Arrays.copyOf(recipientHashes, capacity);
+			idNext = Arrays.copyOf(idNext, capacity);
+			recipientNext = Arrays.copyOf(recipientNext, capacity);
+			idHeads = rehash(idHashes, idNext, capacity);
+			recipientHeads = rehash(recipientHashes, recipientNext, capacity);
+		}
+		offsets[count] = offset;
+		idHashes[count] = hash(messageId);
+		recipientHashes[count] = hash(recipient);
+		link(idHeads, idNext, idHashes, count);
+		link(recipientHeads, recipientNext, recipientHashes, count);
+		count++;
+	}
+
+	/**
+	 * Rebuild hash chains for larger table
+	 *
+	 * @param hashes is hash of each record
+	 * @param next is chain of each record
+	 * @param capacity is new number of chains
+	 * @return head of each chain
+	 */
+	private int[] rehash(int[] hashes, int[] next, int capacity) {
+		int[] heads = emptyHeads(capacity);
+		for (int entry = 0; entry < count; entry++) {
+			link(heads, next, hashes, entry);
+		}
+		return heads;
+	}
+
+	/**
+	 * Insert record at the beginning of its chain
+	 */
+	private static void link(int[] heads, int[] next, int[] hashes, int entry) {
+		int bucket = hashes[entry] & (heads.length - 1);
+		next[entry] = heads[bucket];
+		heads[bucket] = entry;
+	}
+
+	/**
+	 * @param size is number of chains
+	 * @return chains without any record
+	 */
+	private static int[] emptyHeads(int size) {
+		int[] heads = new int[size];
+		Arrays.fill(heads, -1);
+		return heads;
+	}
+
+	/**
+	 * @param text is message ID or recipient
+	 * @return 32-bits hash of the text
+	 */
+	private static int hash(String text) {
+		return (int)Fingerprint.of(text);
+	}
+
+	/**
+	 * Quote CSV value which contains comma, quote or new line
+	 *
+	 * @param value is text value
+	 * @return CSV value
+	 */
+	private static String csv(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0
+				&& value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+}
@@ -0,0 +1,348 @@
+package journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import ingest.Fingerprint;
+
+/**
+ * Persistent record of the messages sent to each recipient, which
+ * prevents duplicate delivery after reconnect or restart. Each pair of
+ * message ID and recipient is stored as a 64-bits fingerprint in a
+ * memory mapped open addressing hash table. Two lowest bits of the slot
+ * keep the delivery state. NONE is never stored (empty slot is zero),
+ * so its code 0 is used by REJECTED.
+ *
+ * Message is marked PENDING before it is sent and DELIVERED, FAILED
+ * (4xx reply) or REJECTED (5xx reply) when the server replies. PENDING
+ * message whose reply was never read (connection lost after DATA) may
+ * have been delivered, so it is not sent again. Only FAILED message is
+ * sent again, permanent rejection would repeat on every run.
+ *
+ * @author Martin Holecek
+ *
+ */
+public class DeliveryLedger implements Closeable {
+
+	/**
+	 * Delivery state of the message for the recipient
+	 */
+	public enum State {
+		/** Message was never sent to the recipient */
+		NONE,
+		/** Message was sent, but the server reply was not received */
+		PENDING,
+		/** Server accepted the message */
+		DELIVERED,
+		/** Server rejected the message temporarily (4xx), it can be sent again */
+		FAILED,
+		/** Server rejected the message permanently (5xx), it is not sent again */
+		REJECTED
+	}
+
+	private static final int MAGIC = 0x444C4752;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int INITIAL_CAPACITY = 1 << 16;
+	private static final int MAX_CAPACITY = 1 << 27;
+	private static final long STATE_MASK = 3L;
+	/** State of each code stored in the slot */
+	private static final State[] STATES = { State.REJECTED, State.PENDING, State.DELIVERED, State.FAILED };
+
+	private final Path file;
+	private MappedByteBuffer table;
+	private int capacity;
+	private int count;
+
+	/**
+	 * Constructor
+	 *
+	 * @param file is ledger file
+	 */
+	private DeliveryLedger(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Open ledger file or create a new one
+	 *
+	 * @param file is ledger file
+	 * @return open ledger
+	 * @throws IOException if the file can not be mapped or is not delivery ledger
+	 */
+	public static DeliveryLedger open(Path file) throws IOException {
+		DeliveryLedger ledger = new DeliveryLedger(file);
+		if (!Files.exists(file) || Files.size(file) == 0) {
+			ledger.table = create(file, INITIAL_CAPACITY);
+		} else {
+			ledger.table = map(file, Files.size(file));
+		}
+
+		MappedByteBuffer table = ledger.table;
+		if (table.capacity() < HEADER_SIZE || table.getInt(0) != MAGIC || table.getInt(4) != VERSION) {
+			throw new IOException("File is not delivery ledger");
+		}
+		ledger.capacity = table.getInt(8);
+		ledger.count = table.getInt(12);
+		if (Integer.bitCount(ledger.capacity) != 1
+				|| table.capacity() != HEADER_SIZE + (long)ledger.capacity * 8) {
+			throw new IOException("Delivery ledger is damaged");
+		}
+		return ledger;
+	}
+
+	/**
+	 * Find delivery state of the message
+	 *
+	 * @param messageId is identifier of the message
+	 * @param recipient is address of the recipient
+	 * @return delivery state
+	 */
+	public synchronized State getState(String messageId, String recipient) {
+		long key = key(messageId, recipient);
+		int slot = find(key);
+		long value = table.getLong(offset(slot));
+		return value == 0 ? State.NONE : STATES[(int)(value & STATE_MASK)];
+	}
+
+	/**
+	 * @param state is delivery state
+	 * @return code of the state stored in the slot
+	 */
+	private static long code(State state) {
+		return state == State.REJECTED ? 0 : state.ordinal();
+	}
+
+	/**
+	 * Check if the message can be sent to the recipient
+	 *
+	 * @param messageId is identifier of the message
+	 * @param recipient is address of the recipient
+	 * @return true if the message was never sent or the server rejected it temporarily
+	 */
+	public boolean canSend(String messageId, String recipient) {
+		State state = getState(messageId, recipient);
+		return state == State.NONE || state == State.FAILED;
+	}
+
+	/**
+	 * Mark message as sent before the server reply is received
+	 *
+	 * @param messageId is identifier of the message
+	 * @param recipient is address of the recipient
+	 * @throws IOException if the ledger can not grow
+	 */
+	public void markPending(String messageId, String recipient) throws IOException {
+		update(messageId, recipient, State.PENDING);
+	}
+
+	/**
+	 * Mark message as accepted by the server
+	 *
+	 * @param messageId is identifier of the message
+	 * @param recipient is address of the recipient
+	 * @throws IOException if the ledger can not grow
+	 */
+	public void markDelivered(String messageId, String recipient) throws IOException {
+		update(messageId, recipient, State.DELIVERED);
+	}
+
+	/**
+	 * Mark message as temporarily rejected by the server (4xx reply)
+	 *
+	 * @param messageId is identifier of the message
+	 * @param recipient is address of the recipient
+	 * @throws IOException if the ledger can not grow
+	 */
+	public void markFailed(String messageId, String recipient) throws IOException {
+		update(messageId, recipient, State.FAILED);
+	}
+
+	/**
+	 * Mark message as permanently rejected by the server (5xx reply)
+	 *
+	 * @param messageId is identifier of the message
+	 * @param recipient is address of the recipient
+	 * @throws IOException if the ledger can not grow
+	 */
+	public void markRejected(String messageId, String recipient) throws IOException {
+		update(messageId, recipient, State.REJECTED);
+	}
+
+	/**
+	 * Change all PENDING messages to FAILED, so they can be sent again.
+	 * Use it when the server confirmed (or the delivery journal shows
+	 * with reply code 0) that the pending messages were not delivered.
+	 * Ledger keeps only fingerprints, so PENDING messages of all message
+	 * IDs are released.
+	 *
+	 * @return number of released messages
+	 */
+	public synchronized int releasePending() {
+		int released = 0;
+		for (int slot = 0; slot < capacity; slot++) {
+			long value = table.getLong(offset(slot));
+			if (value != 0 && (value & STATE_MASK) == code(State.PENDING)) {
+				table.putLong(offset(slot), (value & ~STATE_MASK) | code(State.FAILED));
+				released++;
+			}
+		}
+		return released;
+	}
+
+	/**
+	 * @return number of messages in the ledger
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Write changed pages of the table to the disk
+	 */
+	public synchronized void force() {
+		table.force();
+	}
+
+	/**
+	 * Write changed pages of the table to the disk. Mapping is
+	 * released when the ledger is garbage collected.
+	 */
+	@Override
+	public synchronized void close() {
+		table.force();
+	}
+
+	/**
+	 * Insert message or change its state
+	 *
+	 * @param messageId is identifier of the message
+	 * @param recipient is address of the recipient
+	 * @param state is new delivery state
+	 * @throws IOException if the ledger can not grow
+	 */
+	private synchronized void update(String messageId, String recipient, State state) throws IOException {
+		long key = key(messageId, recipient);
+		int slot = find(key);
+		if (table.getLong(offset(slot)) == 0) {
+			// Keep the table at most 70 % full
+			if ((count + 1) * 10L > capacity * 7L) {
+				grow();
+				slot = find(key);
+			}
+			count++;
+			table.putInt(12, count);
+		}
+		table.putLong(offset(slot), key | code(state));
+	}
+
+	/**
+	 * Find slot of the key or the empty slot where the key belongs
+	 *
+	 * @param key is fingerprint without state bits
+	 * @return slot number
+	 */
+	private int find(long key) {
+		int mask = capacity - 1;
+		int slot = (int)(key >>> 32) & mask;
+		long value;
+		while ((value = table.getLong(offset(slot))) != 0 && (value & ~STATE_MASK) != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Double the table. New table is written to a temporary file
+	 * which replaces the ledger, so the ledger is never half copied.
+	 *
+	 * @throws IOException if the new table can not be created
+	 */
+	private void grow() throws IOException {
+		if (capacity >= MAX_CAPACITY) {
+			throw new IOException("Delivery ledger is full");
+		}
+		int newCapacity = capacity * 2;
+		Path temporary = Paths.get(file.toString() + ".tmp");
+		MappedByteBuffer grown = create(temporary, newCapacity);
+
+		int mask = newCapacity - 1;
+		for (int slot = 0; slot < capacity; slot++) {
+			long value = table.getLong(offset(slot));
+			if (value != 0) {
+				int target = (int)(value >>> 32) & mask;
+				while (grown.getLong(offset(target)) != 0) {
+					target = (target + 1) & mask;
+				}
+				grown.putLong(offset(target), value);
+			}
+		}
+		grown.putInt(12, count);
+		grown.force();
+
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		table = grown;
+		capacity = newCapacity;
+	}
+
+	/**
+	 * @param slot is slot number
+	 * @return position of the slot in the file
+	 */
+	private static int offset(int slot) {
+		return HEADER_SIZE + slot * 8;
+	}
+
+	/**
+	 * Fingerprint of the message and recipient without state bits.
+	 * Key is never zero, because zero marks empty slot.
+	 *
+	 * @param messageId is identifier of the message
+	 * @param recipient is address of the recipient
+	 * @return key of the message
+	 */
+	private static long key(String messageId, String recipient) {
+		long key = Fingerprint.of(messageId, recipient) & ~STATE_MASK;
+		return key == 0 ? STATE_MASK + 1 : key;
+	}
+
+	/**
+	 * Create file with empty table
+	 *
+	 * @param target is created file
+	 * @param capacity is number of slots
+	 * @return mapped table
+	 * @throws IOException if the file can not be created
+	 */
+	private static MappedByteBuffer create(Path target, int capacity) throws IOException {
+		Files.deleteIfExists(target);
+		MappedByteBuffer table = map(target, HEADER_SIZE + (long)capacity * 8);
+		table.putInt(0, MAGIC);
+		table.putInt(4, VERSION);
+		table.putInt(8, capacity);
+		table.putInt(12, 0);
+		return table;
+	}
+
+	/**
+	 * Map the file into the memory
+	 *
+	 * @param target is ledger file
+	 * @param size is size of the file
+	 * @return mapped file
+	 * @throws IOException if the file can not be mapped
+	 */
+	private static MappedByteBuffer map(Path target, long size) throws IOException {
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package journal;
+
+/**
+ * Outcome of the delivery of one message to one recipient
+ *
+ * @author Martin Holecek
+ *
+ */
+public class DeliveryRecord {
+	private final String messageId;
+	private final String recipient;
+	private final int replyCode;
+	private final int attempts;
+	private final long startTime;
+	private final long durationMicros;
+
+	/**
+	 * Constructor
+	 *
+	 * @param messageId is identifier of the message (journal keeps at most 255 ASCII characters)
+	 * @param recipient is address of the recipient (journal keeps at most 255 ASCII characters)
+	 * @param replyCode is final reply code of the server, 0 if server did not reply
+	 * @param attempts is number of times the message was sent
+	 * @param startTime is start of the transaction in milliseconds since epoch
+	 * @param durationMicros is duration of the transaction in microseconds
+	 */
+	public DeliveryRecord(String messageId, String recipient, int replyCode, int attempts,
+			long startTime, long durationMicros) {
+		this.messageId = messageId;
+		this.recipient = recipient;
+		this.replyCode = replyCode;
+		this.attempts = attempts;
+		this.startTime = startTime;
+		this.durationMicros = durationMicros;
+	}
+
+	/**
+	 * Parse reply code from the server response
+	 *
+	 * @param response is server response, for example "250 OK"
+	 * @return three digits reply code, or 0 if response has no reply code
+	 */
+	public static int parseReplyCode(String response) {
+		if (response == null || response.length() < 3) {
+			return 0;
+		}
+		int code = 0;
+		for (int i = 0; i < 3; i++) {
+			char ch = response.charAt(i);
+			if (ch < '0' || ch > '9') {
+				return 0;
+			}
+			code = code * 10 + (ch - '0');
+		}
+		return code;
+	}
+
+	/**
+	 * @return identifier of the message
+	 */
+	public String getMessageId() {
+		return messageId;
+	}
+
+	/**
+	 * @return address of the recipient
+	 */
+	public String getRecipient() {
+		return recipient;
+	}
+
+	/**
+	 * @return final reply code of the server
+	 */
+	public int getReplyCode() {
+		return replyCode;
+	}
+
+	/**
+	 * @return number of times the message was sent
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * @return start of the transaction in milliseconds since epoch
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return duration of the transaction in microseconds
+	 */
+	public long getDurationMicros() {
+		return durationMicros;
+	}
+
+	@Override
+	public String toString() {
+		return messageId + " " + recipient + " " + replyCode;
+	}
+}
@@ -0,0 +1,20 @@
+package profiler;
+
+/**
+ * Phases of the mail transaction measured by the profiler
+ *
+ * @author Martin Holecek
+ *
+ */
+public enum Phase {
+	/** Conversion of the message to 7-bits ASCII (or template merge) */
+	ENCODE,
+	/** Write of the frame to the output buffer (with compression if enabled) */
+	WRITE,
+	/** Flush of the output buffer to the socket */
+	FLUSH,
+	/** Wait for the first bytes of the server response */
+	SERVER_WAIT,
+	/** Read and conversion of the server response to string */
+	DECODE
+}
@@ -0,0 +1,29 @@
+package profiler;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event of one phase of the sampled transaction
+ *
+ * @author Martin Holecek
+ *
+ */
+@Name("smtp.client.Phase")
+@Label("SMTP Phase")
+@Category("SMTP Client")
+class PhaseEvent extends jdk.jfr.Event {
+	@Label("Phase")
+	String phase;
+
+	@Label("Phase Duration")
+	@Timespan(Timespan.NANOSECONDS)
+	long elapsed;
+
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+}
@@ -0,0 +1,109 @@
+package profiler;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Measures phases of the transactions of one session. Session asks
+ * {@link #isSampling()} before it reads System.nanoTime(), so the
+ * transactions which are not sampled cost only one field read.
+ * Flight recorder events are created only when the recorder is running.
+ *
+ * @author Martin Holecek
+ *
+ */
+public class ProfileRecorder {
+	private final TransactionProfiler profiler;
+	private final int sampleRate;
+	private final long[] nanos = new long[Phase.values().length];
+	private final int[] counts = new int[Phase.values().length];
+	private long transactions;
+	private long start;
+	private boolean sampling;
+
+	/**
+	 * Constructor
+	 *
+	 * @param profiler collects totals of all sessions
+	 * @param sampleRate every sampleRate-th transaction is measured
+	 */
+	ProfileRecorder(TransactionProfiler profiler, int sampleRate) {
+		this.profiler = profiler;
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * Start of the transaction (MAIL FROM Command)
+	 */
+	public void beginTransaction() {
+		sampling = transactions++ % sampleRate == 0;
+		if (sampling) {
+			for (int i = 0; i < nanos.length; i++) {
+				nanos[i] = 0;
+				counts[i] = 0;
+			}
+			start = System.nanoTime();
+		}
+	}
+
+	/**
+	 * @return true if the current transaction is measured
+	 */
+	public boolean isSampling() {
+		return sampling;
+	}
+
+	/**
+	 * Add measured phase to the current transaction
+	 *
+	 * @param phase is measured phase
+	 * @param begin is System.nanoTime() at the start of the phase
+	 * @param end is System.nanoTime() at the end of the phase
+	 * @param bytes is number of bytes processed in the phase
+	 */
+	public void phase(Phase phase, long begin, long end, long bytes) {
+		if (!sampling) {
+			return;
+		}
+		long duration = end - begin;
+		nanos[phase.ordinal()] += duration;
+		counts[phase.ordinal()]++;
+
+		if (FlightRecorder.isInitialized()) {
+			PhaseEvent event = new PhaseEvent();
+			if (event.isEnabled()) {
+				event.phase = phase.name();
+				event.elapsed = duration;
+				event.bytes = bytes;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * End of the transaction (server response to the message)
+	 *
+	 * @param replyCode is final reply code of the server
+	 */
+	public void endTransaction(int replyCode) {
+		if (!sampling) {
+			return;
+		}
+		sampling = false;
+		long duration = System.nanoTime() - start;
+		profiler.add(nanos, counts, duration);
+
+		if (FlightRecorder.isInitialized()) {
+			TransactionEvent event = new TransactionEvent();
+			if (event.isEnabled()) {
+				event.replyCode = replyCode;
+				event.elapsed = duration;
+				event.encode = nanos[Phase.ENCODE.ordinal()];
+				event.write = nanos[Phase.WRITE.ordinal()];
+				event.flush = nanos[Phase.FLUSH.ordinal()];
+				event.serverWait = nanos[Phase.SERVER_WAIT.ordinal()];
+				event.decode = nanos[Phase.DECODE.ordinal()];
+				event.commit();
+			}
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package profiler;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event with phase breakdown of the sampled transaction
+ *
+ * @author Martin Holecek
+ *
+ */
+@Name("smtp.client.Transaction")
+@Label("SMTP Transaction")
+@Category("SMTP Client")
+class TransactionEvent extends jdk.jfr.Event {
+	@Label("Reply Code")
+	int replyCode;
+
+	@Label("Transaction Duration")
+	@Timespan(Timespan.NANOSECONDS)
+	long elapsed;
+
+	@Label("Encode")
+	@Timespan(Timespan.NANOSECONDS)
+	long encode;
+
+	@Label("Write")
+	@Timespan(Timespan.NANOSECONDS)
+	long write;
+
+	@Label("Flush")
+	@Timespan(Timespan.NANOSECONDS)
+	long flush;
+
+	@Label("Server Wait")
+	@Timespan(Timespan.NANOSECONDS)
+	long serverWait;
+
+	@Label("Decode")
+	@Timespan(Timespan.NANOSECONDS)
+	long decode;
+}
@@ -0,0 +1,129 @@
+package profiler;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Opt-in profiler of the mail transactions. Every n-th transaction of
+ * each session is sampled: duration of each phase is measured with
+ * System.nanoTime(), aggregated here and emitted as flight recorder
+ * events. Time of the transaction which is not spent in any phase
+ * (for example user input or journal) is reported as "other".
+ * Events are emitted only when the flight recorder is running, because
+ * the first event would start it and that takes hundreds of milliseconds.
+ *
+ * @author Martin Holecek
+ *
+ */
+public class TransactionProfiler {
+	private static final Phase[] PHASES = Phase.values();
+
+	private final int sampleRate;
+	private final LongAdder[] phaseNanos = new LongAdder[PHASES.length];
+	private final LongAdder[] phaseCount = new LongAdder[PHASES.length];
+	private final LongAccumulator[] phaseMax = new LongAccumulator[PHASES.length];
+	private final LongAdder transactions = new LongAdder();
+	private final LongAdder transactionNanos = new LongAdder();
+
+	/**
+	 * Constructor
+	 *
+	 * @param sampleRate every sampleRate-th transaction is measured, 1 measures all
+	 */
+	public TransactionProfiler(int sampleRate) {
+		if (sampleRate < 1) {
+			throw new IllegalArgumentException("Sample rate must be positive");
+		}
+		this.sampleRate = sampleRate;
+		for (int i = 0; i < PHASES.length; i++) {
+			phaseNanos[i] = new LongAdder();
+			phaseCount[i] = new LongAdder();
+			phaseMax[i] = new LongAccumulator(Math::max, 0);
+		}
+
+		// Register events before the sessions, so the first sampled transaction does not wait
+		if (FlightRecorder.isInitialized()) {
+			FlightRecorder.register(PhaseEvent.class);
+			FlightRecorder.register(TransactionEvent.class);
+		}
+	}
+
+	/**
+	 * Create recorder for one session. Recorder is not thread safe,
+	 * each session must have its own recorder.
+	 *
+	 * @return new recorder
+	 */
+	public ProfileRecorder newRecorder() {
+		return new ProfileRecorder(this, sampleRate);
+	}
+
+	/**
+	 * Add measured transaction to the totals
+	 *
+	 * @param nanos is duration of each phase
+	 * @param counts is number of measurements of each phase
+	 * @param duration is duration of the transaction
+	 */
+	void add(long[] nanos, int[] counts, long duration) {
+		for (int i = 0; i < PHASES.length; i++) {
+			if (counts[i] > 0) {
+				phaseNanos[i].add(nanos[i]);
+				phaseCount[i].add(counts[i]);
+				phaseMax[i].accumulate(nanos[i]);
+			}
+		}
+		transactions.increment();
+		transactionNanos.add(duration);
+	}
+
+	/**
+	 * Print table with time spent in each phase
+	 *
+	 * @param output is destination of the table
+	 */
+	public void dump(PrintStream output) {
+		long count = transactions.sum();
+		long total = transactionNanos.sum();
+		output.println("Sampled transactions: " + count + ", total " + total / 1000000 + " ms");
+		output.println(String.format("%-12s %10s %12s %14s %14s %7s",
+				"phase", "calls", "total ms", "avg us/tx", "max us/tx", "share"));
+		long measured = 0;
+		for (int i = 0; i < PHASES.length; i++) {
+			long nanos = phaseNanos[i].sum();
+			measured += nanos;
+			output.println(String.format("%-12s %10d %12.1f %14.1f %14.1f %6.1f%%",
+					PHASES[i].name().toLowerCase(Locale.ROOT), phaseCount[i].sum(), nanos / 1e6,
+					count == 0 ? 0.0 : nanos / 1e3 / count, phaseMax[i].get() / 1e3,
+					total == 0 ? 0.0 : nanos * 100.0 / total));
+		}
+		long other = Math.max(0, total - measured);
+		output.println(String.format("%-12s %10s %12.1f %14.1f %14s %6.1f%%", "other", "-", other / 1e6,
+				count == 0 ? 0.0 : other / 1e3 / count, "-", total == 0 ? 0.0 : other * 100.0 / total));
+	}
+
+	/**
+	 * Write breakdown in collapsed stack format (one "stack value" line
+	 * per phase, value in microseconds) which can be drawn by flame graph tools
+	 *
+	 * @param output is destination of the stacks
+	 * @throws IOException if the output is not available
+	 */
+	public void dumpCollapsed(Writer output) throws IOException {
+		long measured = 0;
+		for (int i = 0; i < PHASES.length; i++) {
+			long nanos = phaseNanos[i].sum();
+			measured += nanos;
+			output.write("transaction;" + PHASES[i].name().toLowerCase(Locale.ROOT) + " " + nanos / 1000 + "\n");
+		}
+		long other = Math.max(0, transactionNanos.sum() - measured);
+		output.write("transaction;other " + other / 1000 + "\n");
+		output.flush();
+	}
+}
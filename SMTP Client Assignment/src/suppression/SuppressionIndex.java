@@ -0,0 +1,429 @@
+package suppression;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+import ascii.ConvertToASCII;
+import ingest.AddressValidator;
+import ingest.Fingerprint;
+
+/**
+ * Index of addresses which must not receive any mail (unsubscribed,
+ * bounced or blocked recipients). Index file is memory mapped, so it
+ * loads quickly and the addresses are not kept on the heap.
+ *
+ * Lookup checks the Bloom filter first. Only when the filter can
+ * contain the address, the address is confirmed by binary search
+ * in the sorted list of addresses. Lookup does not allocate.
+ *
+ * File format: header (magic, version, count, filter words, hashes),
+ * Bloom filter bits, offsets of the addresses and sorted lower case
+ * ASCII addresses. Index file must be smaller than 2 GB.
+ *
+ * Index is created with {@link #build(Reader, Path)} or from the
+ * command line: SuppressionIndex &lt;address list&gt; &lt;index file&gt;
+ *
+ * @author Martin Holecek
+ *
+ */
+public class SuppressionIndex {
+	/** Number of addresses sorted in memory while the index is built */
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+	private static final int MAGIC = 0x53555050;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 20;
+	private static final int BITS_PER_ADDRESS = 10;
+	private static final int HASHES = 7;
+
+	private final ByteBuffer buffer;
+	private final int count;
+	private final long filterBits;
+	private final int hashes;
+	private final int filterStart;
+	private final int offsetsStart;
+	private final int dataStart;
+
+	/**
+	 * Constructor
+	 *
+	 * @param buffer is content of the index file
+	 * @throws IOException if the file is not suppression index
+	 */
+	private SuppressionIndex(ByteBuffer buffer) throws IOException {
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("File is not suppression index");
+		}
+		this.buffer = buffer;
+		this.count = buffer.getInt(8);
+		int filterWords = buffer.getInt(12);
+		this.hashes = buffer.getInt(16);
+		this.filterBits = filterWords * 64L;
+		this.filterStart = HEADER_SIZE;
+		this.offsetsStart = filterStart + filterWords * 8;
+		this.dataStart = offsetsStart + (count + 1) * 4;
+		if (dataStart > buffer.capacity() || dataStart + buffer.getInt(offsetsStart + count * 4) > buffer.capacity()) {
+			throw new IOException("Suppression index is truncated");
+		}
+	}
+
+	/**
+	 * Map index file into the memory
+	 *
+	 * @param file is index created by {@link #build(Reader, Path)}
+	 * @return suppression index
+	 * @throws IOException if the file can not be read or is not suppression index
+	 */
+	public static SuppressionIndex open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			// Mapping stays valid when the channel is closed
+			return new SuppressionIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Create index file from the list of addresses. List contains one
+	 * address per line, invalid addresses are skipped.
+	 *
+	 * @param source is list of suppressed addresses
+	 * @param target is created index file
+	 * @return number of addresses in the index
+	 * @throws IOException if the list can not be read or the index can not be written
+	 */
+	public static int build(Reader source, Path target) throws IOException {
+		return build(source, target, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Create index file from the list of addresses. List contains one
+	 * address per line, invalid addresses are skipped. Addresses are
+	 * sorted in chunks which are written to temporary files next to
+	 * the index and merged, so only one chunk is kept on the heap.
+	 *
+	 * @param source is list of suppressed addresses
+	 * @param target is created index file
+	 * @param chunkSize is number of addresses sorted in memory
+	 * @return number of addresses in the index
+	 * @throws IOException if the list can not be read or the index can not be written
+	 */
+	public static int build(Reader source, Path target, int chunkSize) throws IOException {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("Chunk size must be positive");
+		}
+		Path directory = target.toAbsolutePath().getParent();
+		List<Path> runs = new ArrayList<>();
+		Path offsetsFile = null;
+		Path dataFile = null;
+		try {
+			// Sort chunks of the list into temporary runs
+			String[] chunk = new String[chunkSize];
+			int size = 0;
+			long valid = 0;
+			BufferedReader reader = new BufferedReader(source);
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String address = AddressValidator.normalize(line);
+				if (address != null) {
+					chunk[size++] = address.toLowerCase(Locale.ROOT);
+					valid++;
+					if (size == chunkSize) {
+						runs.add(writeRun(chunk, size, directory));
+						size = 0;
+					}
+				}
+			}
+			if (size > 0 || runs.isEmpty()) {
+				runs.add(writeRun(chunk, size, directory));
+			}
+			chunk = null;
+
+			// Number of valid addresses is the upper bound of unique addresses
+			int filterWords = (int)Math.min(Integer.MAX_VALUE / 8, Math.max(1, (valid * BITS_PER_ADDRESS + 63) / 64));
+			long[] filter = new long[filterWords];
+			offsetsFile = Files.createTempFile(directory, "offsets", ".tmp");
+			dataFile = Files.createTempFile(directory, "data", ".tmp");
+			int count = merge(runs, filter, offsetsFile, dataFile);
+
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(target)))) {
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+				output.writeInt(count);
+				output.writeInt(filterWords);
+				output.writeInt(HASHES);
+				for (long word : filter) {
+					output.writeLong(word);
+				}
+				Files.copy(offsetsFile, output);
+				Files.copy(dataFile, output);
+			}
+			return count;
+		} finally {
+			for (Path run : runs) {
+				Files.deleteIfExists(run);
+			}
+			if (offsetsFile != null) {
+				Files.deleteIfExists(offsetsFile);
+			}
+			if (dataFile != null) {
+				Files.deleteIfExists(dataFile);
+			}
+		}
+	}
+
+	/**
+	 * Sort the chunk and write unique addresses to a temporary file
+	 *
+	 * @param chunk is lower case addresses
+	 * @param size is number of addresses in the chunk
+	 * @param directory is directory of the temporary file
+	 * @return temporary file with one address per line
+	 * @throws IOException if the file can not be written
+	 */
+	private static Path writeRun(String[] chunk, int size, Path directory) throws IOException {
+		// Lower case ASCII strings are sorted in the same order as bytes
+		Arrays.sort(chunk, 0, size);
+		Path run = Files.createTempFile(directory, "run", ".tmp");
+		try (Writer writer = Files.newBufferedWriter(run, StandardCharsets.US_ASCII)) {
+			for (int i = 0; i < size; i++) {
+				if (i == 0 || !chunk[i].equals(chunk[i - 1])) {
+					writer.write(chunk[i]);
+					writer.write('\n');
+				}
+				chunk[i] = null;
+			}
+		}
+		return run;
+	}
+
+	/**
+	 * Merge sorted runs, skip duplicates, fill the Bloom filter and write
+	 * offsets and data sections of the index to the temporary files
+	 *
+	 * @param runs is sorted temporary files
+	 * @param filter is Bloom filter
+	 * @param offsetsFile is file for the offsets section
+	 * @param dataFile is file for the data section
+	 * @return number of unique addresses
+	 * @throws IOException if the files can not be read or written
+	 */
+	private static int merge(List<Path> runs, long[] filter, Path offsetsFile, Path dataFile) throws IOException {
+		PriorityQueue<Run> queue = new PriorityQueue<>();
+		try (DataOutputStream offsets = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(offsetsFile)));
+				OutputStream data = new BufferedOutputStream(Files.newOutputStream(dataFile))) {
+			for (Path path : runs) {
+				Run run = new Run(Files.newBufferedReader(path, StandardCharsets.US_ASCII));
+				if (run.next()) {
+					queue.add(run);
+				} else {
+					run.reader.close();
+				}
+			}
+
+			int count = 0;
+			long offset = 0;
+			String previous = null;
+			while (!queue.isEmpty()) {
+				Run run = queue.poll();
+				String address = run.current;
+				if (!address.equals(previous)) {
+					offsets.writeInt((int)offset);
+					data.write(ConvertToASCII.getAsciiBytes(address));
+					offset += address.length();
+					if (offset > Integer.MAX_VALUE) {
+						throw new IOException("Suppression index must be smaller than 2 GB");
+					}
+
+					long hash = hash(address);
+					for (int i = 0; i < HASHES; i++) {
+						long bit = bitIndex(hash, i, filter.length * 64L);
+						filter[(int)(bit >>> 6)] |= 1L << bit;
+					}
+					previous = address;
+					count++;
+				}
+				if (run.next()) {
+					queue.add(run);
+				} else {
+					run.reader.close();
+				}
+			}
+
+			// Last offset is end of the data
+			offsets.writeInt((int)offset);
+			return count;
+		} finally {
+			for (Run run : queue) {
+				run.reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Sorted temporary file read by the merge
+	 */
+	private static class Run implements Comparable<Run> {
+		final BufferedReader reader;
+		String current;
+
+		Run(BufferedReader reader) {
+			this.reader = reader;
+		}
+
+		/**
+		 * @return true if the next address was read, false at the end of the file
+		 * @throws IOException if the file can not be read
+		 */
+		boolean next() throws IOException {
+			current = reader.readLine();
+			return current != null;
+		}
+
+		@Override
+		public int compareTo(Run other) {
+			return current.compareTo(other.current);
+		}
+	}
+
+	/**
+	 * Build index file from the list of addresses
+	 *
+	 * @param args list file and index file
+	 */
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			System.out.println("Usage: SuppressionIndex <address list> <index file>");
+			System.exit(2);
+		}
+		try (Reader source = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+			int count = build(source, Paths.get(args[1]));
+			System.out.println("Suppression index contains " + count + " addresses");
+		} catch (IOException e) {
+			System.out.println("Suppression index was not created: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Check if address is suppressed. Comparison is not case sensitive.
+	 *
+	 * @param address is normalized address
+	 * @return true if the address must not receive mail
+	 */
+	public boolean isSuppressed(CharSequence address) {
+		if (count == 0) {
+			return false;
+		}
+
+		// Bloom filter rejects most of the addresses without search
+		long hash = hash(address);
+		for (int i = 0; i < hashes; i++) {
+			long bit = bitIndex(hash, i, filterBits);
+			long word = buffer.getLong(filterStart + (int)(bit >>> 6) * 8);
+			if ((word & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+
+		// Confirm address in the sorted list
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int compare = compare(middle, address);
+			if (compare < 0) {
+				low = middle + 1;
+			} else if (compare > 0) {
+				high = middle - 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return number of addresses in the index
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Compare address stored in the index with lower case of the address
+	 *
+	 * @param entry is position of the address in the index
+	 * @param address is searched address
+	 * @return negative, zero or positive number like {@link Comparable#compareTo(Object)}
+	 */
+	private int compare(int entry, CharSequence address) {
+		int start = dataStart + buffer.getInt(offsetsStart + entry * 4);
+		int end = dataStart + buffer.getInt(offsetsStart + (entry + 1) * 4);
+		int size = end - start;
+		int common = Math.min(size, address.length());
+		for (int i = 0; i < common; i++) {
+			int stored = buffer.get(start + i);
+			int searched = lowerAscii(address.charAt(i));
+			if (stored != searched) {
+				return stored - searched;
+			}
+		}
+		return size - address.length();
+	}
+
+	/**
+	 * Hash of the lower case ASCII text
+	 *
+	 * @param text is address
+	 * @return 64-bits hash
+	 */
+	private static long hash(CharSequence text) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < text.length(); i++) {
+			hash ^= lowerAscii(text.charAt(i));
+			hash *= 0x100000001b3L;
+		}
+		return Fingerprint.mix(hash);
+	}
+
+	/**
+	 * Position of the bit in the filter for the hash function
+	 * (double hashing derived from one 64-bits hash)
+	 *
+	 * @param hash is 64-bits hash of the address
+	 * @param function is number of the hash function
+	 * @param bits is size of the filter in bits
+	 * @return position of the bit
+	 */
+	private static long bitIndex(long hash, int function, long bits) {
+		long combined = (hash & 0xffffffffL) + function * (hash >>> 32);
+		return (combined & Long.MAX_VALUE) % bits;
+	}
+
+	/**
+	 * @param ch is a character
+	 * @return lower case 7-bits ASCII value of the character
+	 */
+	private static int lowerAscii(char ch) {
+		int ascii = ch & 0x007F;
+		if (ascii >= 'A' && ascii <= 'Z') {
+			ascii += 'a' - 'A';
+		}
+		return ascii;
+	}
+}
@@ -0,0 +1,245 @@
+package template;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ascii.ConvertToASCII;
+
+/**
+ * Mail template compiled once and merged for every recipient.
+ * Template text is split to literal segments which are already
+ * converted to 7-bits ASCII and placeholders written as ${name}.
+ * Merge encodes only field values, so the cost of each message
+ * depends on the size of the fields and not on the whole body.
+ *
+ * @author Martin Holecek
+ *
+ */
+public class MailTemplate {
+	private final byte[][] literals;
+	private final int[] slots;
+	private final String[] fieldNames;
+	private final int literalLength;
+	private final int[] heads;
+	private final int[] tailStates;
+
+	/**
+	 * Constructor
+	 *
+	 * @param literals is ASCII encoded text between placeholders
+	 * @param slots is field index of each placeholder
+	 * @param fieldNames is name of each field
+	 */
+	private MailTemplate(byte[][] literals, int[] slots, String[] fieldNames) {
+		this.literals = literals;
+		this.slots = slots;
+		this.fieldNames = fieldNames;
+		this.heads = new int[literals.length];
+		this.tailStates = new int[literals.length];
+
+		int size = 0;
+		for (int i = 0; i < literals.length; i++) {
+			size += literals[i].length;
+
+			/*
+			 * Lines between the first and the last LF of the literal contain
+			 * only template text which was escaped by normalize(). Merge scans
+			 * only the text up to the first LF and starts after the last LF
+			 * with the state computed here.
+			 */
+			int end = scanLength(i);
+			int first = indexOf(literals[i], 0, end);
+			int last = first;
+			for (int next = first; next >= 0; next = indexOf(literals[i], next + 1, end)) {
+				last = next;
+			}
+			heads[i] = first < 0 ? end : first + 1;
+			tailStates[i] = first < 0 ? -1 : MergeBuffer.lineState(literals[i], last + 1, end - last - 1);
+		}
+		this.literalLength = size;
+	}
+
+	/**
+	 * @param literal is index of the literal
+	 * @return number of bytes of the literal which are checked for single
+	 * dot lines, message terminator at the end of the last literal is not checked
+	 */
+	private int scanLength(int literal) {
+		return literal == slots.length ? literals[literal].length - 3 : literals[literal].length;
+	}
+
+	/**
+	 * @param data is ASCII encoded text
+	 * @param from is first checked position
+	 * @param end is end of the checked text
+	 * @return position of the next LF or -1 if there is none
+	 */
+	private static int indexOf(byte[] data, int from, int end) {
+		for (int i = from; i < end; i++) {
+			if (data[i] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Compile template text. Lines are terminated by CRLF, line which
+	 * contains single dot is escaped by extra dot and message
+	 * terminator CRLF.CRLF is appended at the end of the template.
+	 *
+	 * @param text is content of the mail (including Subject line if any)
+	 * @return compiled template
+	 * @throws IllegalArgumentException if placeholder is not closed or has no name
+	 */
+	public static MailTemplate compile(String text) {
+		String body = normalize(text);
+
+		List<byte[]> literals = new ArrayList<>();
+		List<Integer> slots = new ArrayList<>();
+		List<String> names = new ArrayList<>();
+
+		int position = 0;
+		int open = body.indexOf("${");
+		while (open >= 0) {
+			int close = body.indexOf('}', open + 2);
+			if (close < 0) {
+				throw new IllegalArgumentException("Placeholder is not closed at position " + open);
+			}
+			String name = body.substring(open + 2, close).trim();
+			if (name.isEmpty()) {
+				throw new IllegalArgumentException("Placeholder has no name at position " + open);
+			}
+
+			// Reuse field index when the same placeholder is used more times
+			int field = names.indexOf(name);
+			if (field < 0) {
+				field = names.size();
+				names.add(name);
+			}
+
+			literals.add(ConvertToASCII.getAsciiBytes(body.substring(position, open)));
+			slots.add(field);
+
+			position = close + 1;
+			open = body.indexOf("${", position);
+		}
+
+		// Last literal contains end of the body and message terminator
+		literals.add(ConvertToASCII.getAsciiBytes(body.substring(position) + ".\r\n"));
+
+		int[] slotArray = new int[slots.size()];
+		for (int i = 0; i < slotArray.length; i++) {
+			slotArray[i] = slots.get(i);
+		}
+		return new MailTemplate(literals.toArray(new byte[literals.size()][]), slotArray,
+				names.toArray(new String[names.size()]));
+	}
+
+	/**
+	 * Convert line endings to CRLF and escape lines which contain single dot
+	 *
+	 * @param text is template text
+	 * @return text which can be sent after DATA command
+	 */
+	private static String normalize(String text) {
+		StringBuilder out = new StringBuilder(text.length() + 16);
+		String[] lines = text.replace("\r\n", "\n").replace('\r', '\n').split("\n", -1);
+
+		// Text which ends with new line has empty last element
+		int count = lines.length;
+		if (count > 0 && lines[count - 1].isEmpty()) {
+			count--;
+		}
+		for (int i = 0; i < count; i++) {
+			if (lines[i].equals(".")) {
+				out.append('.');
+			}
+			out.append(lines[i]).append("\r\n");
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @return names of the fields in order of the first use in the template
+	 */
+	public String[] getFieldNames() {
+		return fieldNames.clone();
+	}
+
+	/**
+	 * Find index of the field in the values array
+	 *
+	 * @param name is field name used in the placeholder
+	 * @return index of the field or -1 if template does not use the field
+	 */
+	public int getFieldIndex(String name) {
+		for (int i = 0; i < fieldNames.length; i++) {
+			if (fieldNames[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Merge field values into the template and write it as a single
+	 * length prefixed frame. Fields are encoded first to the merge buffer,
+	 * then the length and all segments are written to the output.
+	 * Field values may put a single dot on a line together with
+	 * the text around the placeholders (for example ${a}${b} with
+	 * a = "." and b = ""), so merged lines are checked again and
+	 * such dot is escaped, otherwise it would end the message.
+	 *
+	 * @param output is data stream of the session
+	 * @param values is value of each field ordered by {@link #getFieldNames()}
+	 * @param buffer is scratch buffer reused between messages
+	 * @throws IOException if the DataStream is not available
+	 * @throws IllegalArgumentException if number of values does not match number of fields
+	 */
+	public void writeTo(DataOutput output, String[] values, MergeBuffer buffer) throws IOException {
+		if (values.length != fieldNames.length) {
+			throw new IllegalArgumentException("Template expects " + fieldNames.length
+					+ " fields but " + values.length + " were given");
+		}
+
+		// Encode variable parts of the message
+		buffer.reset(slots.length);
+		for (int i = 0; i < slots.length; i++) {
+			buffer.append(i, values[slots[i]]);
+		}
+		buffer.finish(slots.length);
+
+		// Find lines which contain single dot after the merge
+		for (int i = 0; i < slots.length; i++) {
+			scanLiteral(i, buffer);
+			buffer.scan(buffer.bytes(), buffer.start(i), buffer.size(i));
+		}
+		scanLiteral(slots.length, buffer);
+		byte[] last = literals[slots.length];
+
+		// Write frame length and interleave literals with fields
+		output.writeInt(literalLength + buffer.length() + buffer.escapes());
+		buffer.rewind();
+		for (int i = 0; i < slots.length; i++) {
+			buffer.write(output, literals[i], 0, literals[i].length);
+			buffer.write(output, buffer.bytes(), buffer.start(i), buffer.size(i));
+		}
+		buffer.write(output, last, 0, last.length);
+	}
+
+	/**
+	 * Scan lines of the literal which may contain merged fields
+	 *
+	 * @param literal is index of the literal
+	 * @param buffer is merge buffer which remembers the found dots
+	 */
+	private void scanLiteral(int literal, MergeBuffer buffer) {
+		buffer.scan(literals[literal], 0, heads[literal]);
+		if (tailStates[literal] >= 0) {
+			buffer.skip(scanLength(literal) - heads[literal], tailStates[literal]);
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package template;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Reusable scratch buffer used while merging fields into a
+ * compiled template. Each session keeps one buffer so merging
+ * a message does not allocate once the buffer has grown to
+ * the size of the largest field set.
+ *
+ * @author Martin Holecek
+ *
+ */
+public class MergeBuffer {
+	// States of the line scanner
+	private static final int LINE_START = 0;
+	private static final int DOT = 1;
+	private static final int DOT_CR = 2;
+	private static final int TEXT = 3;
+
+	private byte[] bytes;
+	private int[] offsets;
+	private int length;
+	private int[] escapes;
+	private int escapeCount;
+	private int state;
+	private int position;
+	private int nextEscape;
+
+	/**
+	 * Constructor
+	 */
+	public MergeBuffer() {
+		bytes = new byte[256];
+		offsets = new int[16];
+		escapes = new int[4];
+		length = 0;
+	}
+
+	/**
+	 * Clear the buffer before the next message
+	 *
+	 * @param fields is number of placeholders of the template
+	 */
+	void reset(int fields) {
+		length = 0;
+		escapeCount = 0;
+		state = LINE_START;
+		position = 0;
+		if (offsets.length < fields + 1) {
+			offsets = new int[fields + 1];
+		}
+	}
+
+	/**
+	 * Encode field value to 7-bits ASCII at the end of the buffer.
+	 * Field values are single line, so CR and LF are replaced by space
+	 * to prevent injection of headers or new lines. Single dot lines
+	 * are escaped later by {@link #scan(byte[], int, int)}.
+	 *
+	 * @param slot is position of the placeholder in the template
+	 * @param value is field value, null is merged as empty string
+	 */
+	void append(int slot, String value) {
+		offsets[slot] = length;
+		if (value == null) {
+			return;
+		}
+
+		int size = value.length();
+		ensureCapacity(size);
+		for (int i = 0; i < size; i++) {
+			char ch = value.charAt(i);
+			if (ch == '\r' || ch == '\n') {
+				ch = ' ';
+			}
+			bytes[length++] = (byte)(ch & 0x007F);
+		}
+	}
+
+	/**
+	 * Mark end of the last field
+	 *
+	 * @param slot is number of placeholders of the template
+	 */
+	void finish(int slot) {
+		offsets[slot] = length;
+	}
+
+	/**
+	 * @return encoded bytes of all fields
+	 */
+	byte[] bytes() {
+		return bytes;
+	}
+
+	/**
+	 * @param slot is position of the placeholder in the template
+	 * @return offset of the field in the buffer
+	 */
+	int start(int slot) {
+		return offsets[slot];
+	}
+
+	/**
+	 * @param slot is position of the placeholder in the template
+	 * @return number of encoded bytes of the field
+	 */
+	int size(int slot) {
+		return offsets[slot + 1] - offsets[slot];
+	}
+
+	/**
+	 * @return number of encoded bytes of all fields
+	 */
+	int length() {
+		return length;
+	}
+
+	/**
+	 * Scan next segment of the merged message and remember position
+	 * of each dot which is alone on its line (followed by CRLF)
+	 *
+	 * @param data is segment of the message
+	 * @param offset is start of the segment in the array
+	 * @param size is number of bytes of the segment
+	 */
+	void scan(byte[] data, int offset, int size) {
+		for (int i = offset; i < offset + size; i++) {
+			if (data[i] == '\n' && state == DOT_CR) {
+				addEscape(position - 2);
+			}
+			state = next(state, data[i]);
+			position++;
+		}
+	}
+
+	/**
+	 * Skip segment which does not need to be scanned
+	 *
+	 * @param size is number of skipped bytes
+	 * @param lineState is state of the scanner at the end of the segment
+	 */
+	void skip(int size, int lineState) {
+		position += size;
+		state = lineState;
+	}
+
+	/**
+	 * Scan text which starts on a new line and contains no LF
+	 *
+	 * @param data is ASCII encoded text
+	 * @param offset is start of the text in the array
+	 * @param size is number of bytes of the text
+	 * @return state of the scanner at the end of the text
+	 */
+	static int lineState(byte[] data, int offset, int size) {
+		int lineState = LINE_START;
+		for (int i = offset; i < offset + size; i++) {
+			lineState = next(lineState, data[i]);
+		}
+		return lineState;
+	}
+
+	/**
+	 * @param state is current state of the scanner
+	 * @param ch is next byte of the message
+	 * @return next state of the scanner
+	 */
+	private static int next(int state, byte ch) {
+		if (ch == '\n') {
+			return LINE_START;
+		} else if (state == LINE_START && ch == '.') {
+			return DOT;
+		} else if (state == DOT && ch == '\r') {
+			return DOT_CR;
+		}
+		return TEXT;
+	}
+
+	/**
+	 * @return number of dots which must be escaped
+	 */
+	int escapes() {
+		return escapeCount;
+	}
+
+	/**
+	 * Prepare for writing of the scanned segments
+	 */
+	void rewind() {
+		position = 0;
+		nextEscape = 0;
+	}
+
+	/**
+	 * Write next segment of the merged message, the segments must be
+	 * written in the same order as they were scanned. Extra dot is
+	 * written before each dot found by the scan.
+	 *
+	 * @param output is data stream of the session
+	 * @param data is segment of the message
+	 * @param offset is start of the segment in the array
+	 * @param size is number of bytes of the segment
+	 * @throws IOException if the DataStream is not available
+	 */
+	void write(DataOutput output, byte[] data, int offset, int size) throws IOException {
+		int end = position + size;
+		while (nextEscape < escapeCount && escapes[nextEscape] < end) {
+			int split = escapes[nextEscape++] - position;
+			output.write(data, offset, split);
+			output.write('.');
+			offset += split;
+			size -= split;
+			position += split;
+		}
+		output.write(data, offset, size);
+		position += size;
+	}
+
+	/**
+	 * Remember position of the dot which must be escaped
+	 *
+	 * @param dot is position of the dot in the merged message
+	 */
+	private void addEscape(int dot) {
+		if (escapeCount == escapes.length) {
+			int[] grown = new int[escapes.length * 2];
+			System.arraycopy(escapes, 0, grown, 0, escapeCount);
+			escapes = grown;
+		}
+		escapes[escapeCount++] = dot;
+	}
+
+	/**
+	 * Grow the buffer when there is not enough space
+	 *
+	 * @param extra is number of bytes which will be appended
+	 */
+	private void ensureCapacity(int extra) {
+		if (length + extra > bytes.length) {
+			byte[] grown = new byte[Math.max(bytes.length * 2, length + extra)];
+			System.arraycopy(bytes, 0, grown, 0, length);
+			bytes = grown;
+		}
+	}
+}